@@ -78,8 +78,7 @@ public class CLIRunner {
 
         int r = -1;
         try {
-            OutputStream out = new Filter(build.getCharset().name(), secretsForBuild).decorateLogger(build, listener.getLogger());
-            AntConsoleAnnotator aca = new AntConsoleAnnotator(out, build.getCharset());
+            AntConsoleAnnotator aca = createAntLog();
             try {
                 r = launcher.launch().cmds(args).envs(env).stdout(aca).pwd(ws).join();
             } finally {
@@ -93,6 +92,14 @@ public class CLIRunner {
         return r == 0;
     }
 
+    /**
+     * The build log for the output of ant, with the secrets of the build masked.
+     */
+    public AntConsoleAnnotator createAntLog() throws IOException, InterruptedException {
+        OutputStream out = new Filter(build.getCharset().name(), secretsForBuild).decorateLogger(build, listener.getLogger());
+        return new AntConsoleAnnotator(out, build.getCharset());
+    }
+
     /**
      * Backward compatibility by checking the number of parameters
      *
@@ -0,0 +1,44 @@
+package cn.opsbox.jenkinsci.plugins.oes;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes whole lines with a prefix, so that the output of stages or steps running at the same time
+ * is interleaved line by line in the build log.
+ */
+public class LinePrefixOutputStream extends LineTransformationOutputStream {
+
+    private final OutputStream out;
+
+    private final byte[] prefix;
+
+    public LinePrefixOutputStream(OutputStream out, String prefix, Charset charset) {
+        this.out = out;
+        this.prefix = prefix.getBytes(charset);
+    }
+
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        // lines of the other writers of the log are written whole as well
+        synchronized (out) {
+            out.write(prefix);
+            out.write(b, 0, len);
+            out.flush();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the build log stays open, only the partial line is written
+        forceEol();
+    }
+}
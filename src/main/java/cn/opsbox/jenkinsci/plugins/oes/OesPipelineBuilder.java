@@ -82,8 +82,16 @@ public class OesPipelineBuilder extends Builder implements SimpleBuildStep {
 
         if (r) {
             run.setResult(Result.SUCCESS);
+            try {
+                PipelineCheckpoint.of(run).delete();
+            } catch (IOException e) {
+                logger.printf("--//WARN: remove checkpoint failed: %s%n", e.getMessage());
+            }
         } else {
             run.setResult(Result.FAILURE);
+            if (PipelineCheckpoint.of(run).exists()) {
+                run.addAction(new PipelineResumeAction());
+            }
             throw new AbortException("--//pipeline build fail.");
         }
     }
@@ -1,10 +1,27 @@
 package cn.opsbox.jenkinsci.plugins.oes;
 
+import cn.opsbox.jenkinsci.plugins.oes.pipeline.Cache;
 import cn.opsbox.jenkinsci.plugins.oes.pipeline.Config;
 import cn.opsbox.jenkinsci.plugins.oes.pipeline.ConfigException;
+import cn.opsbox.jenkinsci.plugins.oes.pipeline.ParallelSteps;
 import cn.opsbox.jenkinsci.plugins.oes.pipeline.Stage;
+import cn.opsbox.jenkinsci.plugins.oes.pipeline.StageGraph;
 import cn.opsbox.jenkinsci.plugins.oes.pipeline.Step;
+import cn.opsbox.jenkinsci.plugins.oes.admission.AdmissionResource;
+import cn.opsbox.jenkinsci.plugins.oes.admission.NodeAdmission;
+import cn.opsbox.jenkinsci.plugins.oes.ant.AntDaemonClient;
+import cn.opsbox.jenkinsci.plugins.oes.ant.AntExecMode;
+import cn.opsbox.jenkinsci.plugins.oes.ant.AntRequest;
+import cn.opsbox.jenkinsci.plugins.oes.ant.InProcessAnt;
+import cn.opsbox.jenkinsci.plugins.oes.ant.JavaAnt;
+import cn.opsbox.jenkinsci.plugins.oes.cache.PipelineCacheStore;
+import cn.opsbox.jenkinsci.plugins.oes.cache.StepResultCache;
+import cn.opsbox.jenkinsci.plugins.oes.config.OesGlobalConfiguration;
 import cn.opsbox.jenkinsci.plugins.oes.registry.RegistryUtil;
+import cn.opsbox.jenkinsci.plugins.oes.registry.StepDirLock;
+import cn.opsbox.jenkinsci.plugins.oes.registry.StepLock;
+import cn.opsbox.jenkinsci.plugins.oes.registry.StepPackage;
+import cn.opsbox.jenkinsci.plugins.oes.registry.StepPackageStore;
 import cn.opsbox.jenkinsci.plugins.oes.registry.StepRegistry;
 import cn.opsbox.jenkinsci.plugins.oes.util.Constants;
 import hudson.EnvVars;
@@ -15,7 +32,12 @@ import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.remoting.RemoteOutputStream;
+import hudson.tasks._ant.AntConsoleAnnotator;
 import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
 import lombok.SneakyThrows;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.credentialsbinding.MultiBinding;
@@ -25,9 +47,12 @@ import org.yaml.snakeyaml.Yaml;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class OesRunner extends CLIRunner{
 
@@ -36,16 +61,97 @@ public class OesRunner extends CLIRunner{
     public static final String DOT_OES_STEPS_DIR = ".oes/steps";
     public static final String DOT_OES_ENVIRONS_PROPERTIES = ".oes/environs.properties";
 
+    /**
+     * {@code _STEPS_LOCK=frozen} runs the step versions of {@code .oes/steps.lock}.
+     */
+    public static final String PARAM_STEPS_LOCK = "_STEPS_LOCK";
+    public static final String STEPS_LOCK_FROZEN = "frozen";
+
+    private static final AtomicLong RUN_SEQUENCE = new AtomicLong();
+
     private List<MultiBinding.Unbinder> unbinders = new ArrayList<>();
 
     private Map<Run<?, ?>, Collection<String>> secretsForBuild = new WeakHashMap<>();
 
+    private final Map<String, Prefetch> prefetches;
+
+    /**
+     * the step dirs of the workspace by step id, shared by the runners of the workspace.
+     */
+    private final Map<String, InstalledStep> installedSteps;
+
+    private StepLock stepLock = new StepLock();
+
+    private String aslVersion;
+
+    /**
+     * the workspace of the build, which holds the outputs of the stages.
+     */
+    private final FilePath buildWs;
+
+    /**
+     * the output patterns of the stages which succeeded, handed over to the stages running on other nodes.
+     */
+    private final List<String> stageOutputs;
+
+    /**
+     * the stages of the run which succeeded, for resuming from the failed stage.
+     */
+    private PipelineCheckpoint checkpoint;
+
+    /**
+     * the environment of the running stage before its secrets are bound, part of the keys of the step results.
+     */
+    private Map<String, String> stageEnvirons = Collections.emptyMap();
+
+    /**
+     * the installed versions of the steps run by this runner.
+     */
+    private final Map<String, String> stepVersions = new ConcurrentHashMap<>();
+
     public OesRunner(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
         super(build, launcher, listener);
+        prefetches = new ConcurrentHashMap<>();
+        installedSteps = new ConcurrentHashMap<>();
+        buildWs = getWs();
+        stageOutputs = Collections.synchronizedList(new ArrayList<>());
     }
 
     public OesRunner(Run<?,?> run, FilePath ws, Launcher launcher, TaskListener listener) {
         super(run, ws, launcher, listener);
+        prefetches = new ConcurrentHashMap<>();
+        installedSteps = new ConcurrentHashMap<>();
+        buildWs = ws;
+        stageOutputs = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    /**
+     * A runner sharing the resolved and prefetched steps of its parent, with a listener of its own.
+     */
+    private OesRunner(OesRunner parent, TaskListener listener) {
+        super(parent.getBuild(), parent.getWs(), parent.getLauncher(), listener);
+        prefetches = parent.prefetches;
+        installedSteps = parent.installedSteps;
+        stepLock = parent.stepLock;
+        aslVersion = parent.aslVersion;
+        buildWs = parent.buildWs;
+        stageOutputs = parent.stageOutputs;
+        checkpoint = parent.checkpoint;
+        stageEnvirons = parent.stageEnvirons;
+    }
+
+    /**
+     * A runner in the workspace of another node, sharing the resolved steps of its parent.
+     * The steps are installed into its own workspace.
+     */
+    private OesRunner(OesRunner parent, FilePath ws, Launcher launcher) {
+        super(parent.getBuild(), ws, launcher, parent.getListener());
+        prefetches = new ConcurrentHashMap<>();
+        installedSteps = new ConcurrentHashMap<>();
+        stepLock = parent.stepLock;
+        buildWs = parent.buildWs;
+        stageOutputs = parent.stageOutputs;
+        checkpoint = parent.checkpoint;
     }
 
     private PrintStream getLogger() {
@@ -80,11 +186,11 @@ public class OesRunner extends CLIRunner{
         List<Stage> stages = new ArrayList<>(2);
         if (paramEnvirons.containsKey("_RUN_STAGES")) {
             for (String stageName : StringUtils.split(paramEnvirons.get("_RUN_STAGES"), ",")) {
-                Stage stage = getStage(config.getStages(), stageName);
-                if (stage == null) {
+                List<Stage> namedStages = getStages(config.getStages(), stageName);
+                if (namedStages.isEmpty()) {
                     throw new ConfigException(String.format("stage(%s) is not configure", stageName));
                 }
-                stages.add(stage);
+                stages.addAll(namedStages);
             }
         }
 
@@ -92,7 +198,154 @@ public class OesRunner extends CLIRunner{
             stages = config.getStages();
         }
 
-        return runStages(stages, paramEnvirons);
+        checkpoint = PipelineCheckpoint.of(getBuild());
+        PipelineCheckpoint resumedCheckpoint = getResumedCheckpoint();
+        List<PipelineCheckpoint.CompletedStage> completedStages = new ArrayList<>();
+        if (resumedCheckpoint != null) {
+            completedStages = resumedCheckpoint.getCompletedStages();
+            Set<String> completedNames = new HashSet<>();
+            for (PipelineCheckpoint.CompletedStage completedStage : completedStages) {
+                completedNames.add(completedStage.getName());
+            }
+            stages = new ArrayList<>(stages);
+            stages.removeIf(stage -> completedNames.contains(stage.getName()));
+        }
+
+        StageGraph stageGraph = StageGraph.of(stages, config.getStages());
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(OesGlobalConfiguration.get().getPrefetchThreads(), 1),
+                new NamingThreadFactory(new DaemonThreadFactory(), "OesRunner.prefetch"));
+        try {
+            if (!resolve(stages, paramEnvirons, resumedCheckpoint, executor)) {
+                return false;
+            }
+            restoreCompletedStages(completedStages, config.getStages());
+            // steps of stages on other nodes are installed in their own workspaces
+            List<Stage> localStages = new ArrayList<>();
+            for (Stage stage : stages) {
+                if (stage.getAgentLabel() == null) {
+                    localStages.add(stage);
+                }
+            }
+            prefetch(localStages, executor);
+
+            Map<Cache, String> cacheKeys = restoreCaches(config, paramEnvirons);
+            boolean ret = runStages(stageGraph, config.getParallelism(), paramEnvirons);
+            if (ret) {
+                saveCaches(cacheKeys);
+            }
+            return ret;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the checkpoint of the failed run this run resumes from, {@code null} when it doesn't resume.
+     */
+    private PipelineCheckpoint getResumedCheckpoint() {
+        PipelineResumeAction.ResumedFrom resumedFrom = getBuild().getAction(PipelineResumeAction.ResumedFrom.class);
+        if (resumedFrom == null) {
+            return null;
+        }
+
+        Run<?, ?> run = getBuild().getParent().getBuildByNumber(resumedFrom.getNumber());
+        if (run == null || !PipelineCheckpoint.of(run).exists()) {
+            getLogger().printf("--//WARN: build #%d has no checkpoint, run all stages%n", resumedFrom.getNumber());
+            return null;
+        }
+        getLogger().printf("--//INFO: resume from build #%d%n", resumedFrom.getNumber());
+        return PipelineCheckpoint.of(run);
+    }
+
+    /**
+     * Take over the stages which succeeded in the run resumed from: their outputs are restored into the workspace,
+     * and their environment, without credentials, is set for the remaining stages in the order of the pipeline.
+     * They are kept in the checkpoint of this run, so it can be resumed in turn.
+     */
+    private void restoreCompletedStages(List<PipelineCheckpoint.CompletedStage> completedStages,
+                                        List<Stage> allStages) throws IOException, InterruptedException {
+        for (PipelineCheckpoint.CompletedStage completedStage : completedStages) {
+            getLogger().printf("--//INFO: skip stage(%s), succeeded in the run resumed from%n", completedStage.getName());
+            completedStage.restoreOutputs(buildWs);
+            stageOutputs.addAll(completedStage.getOutputs());
+            checkpoint.copyStage(completedStage);
+        }
+
+        // the checkpoint keeps the stages in the order they finished
+        List<String> stageNames = new ArrayList<>();
+        for (Stage stage : allStages) {
+            stageNames.add(stage.getName());
+        }
+        List<PipelineCheckpoint.CompletedStage> ordered = new ArrayList<>(completedStages);
+        ordered.sort(Comparator.comparingInt(completedStage -> stageNames.indexOf(completedStage.getName())));
+
+        EnvVars envvars = getEnvvars();
+        for (PipelineCheckpoint.CompletedStage completedStage : ordered) {
+            for (Map.Entry<String, String> environ : completedStage.getEnvirons().entrySet()) {
+                if (!environ.getValue().startsWith("secret://")) {
+                    envvars.put(environ.getKey(), environ.getValue());
+                }
+            }
+        }
+        setEnvvars(envvars);
+    }
+
+    /**
+     * Restore the caches of the pipeline into the workspace before the first stage.
+     *
+     * @return the key of each cache, caches without a key are left out.
+     */
+    private Map<Cache, String> restoreCaches(Config config, Map<String, String> paramEnvirons)
+            throws InterruptedException {
+        Map<Cache, String> cacheKeys = new LinkedHashMap<>();
+        if (config.getCaches().isEmpty()) {
+            return cacheKeys;
+        }
+
+        EnvVars keyEnvvars = new EnvVars(getEnvvars());
+        for (Map.Entry<String, ?> environ : ((Map<String, ?>) config.getEnvironment()).entrySet()) {
+            // yaml values may be numbers
+            keyEnvvars.put(environ.getKey(), String.valueOf(environ.getValue()));
+        }
+        keyEnvvars.putAll(paramEnvirons);
+
+        PipelineCacheStore store = new PipelineCacheStore(getWs());
+        for (Cache cache : config.getCaches()) {
+            String key = cache.getKey();
+            try {
+                key = store.keyOf(cache, keyEnvvars);
+                cacheKeys.put(cache, key);
+
+                String restored = store.restore(key);
+                if (restored == null) {
+                    getLogger().printf("--//INFO: cache(%s) miss%n", key);
+                } else {
+                    getLogger().printf("--//INFO: cache(%s) hit, restored %s%n", key, restored);
+                }
+            } catch (IOException e) {
+                // the stages run without the cache
+                getLogger().printf("--//WARN: cache(%s) restore failed: %s%n", key, e.getMessage());
+            }
+        }
+        return cacheKeys;
+    }
+
+    /**
+     * Save the caches of the pipeline after all stages succeeded.
+     */
+    private void saveCaches(Map<Cache, String> cacheKeys) throws InterruptedException {
+        long maxSizeBytes = OesGlobalConfiguration.get().getPipelineCacheMaxSizeMb() * 1024 * 1024;
+        PipelineCacheStore store = new PipelineCacheStore(getWs());
+        for (Map.Entry<Cache, String> cacheKey : cacheKeys.entrySet()) {
+            try {
+                String saved = store.save(cacheKey.getValue(), cacheKey.getKey().getPaths(), maxSizeBytes);
+                getLogger().printf("--//INFO: cache(%s) saved, %s%n", cacheKey.getValue(), saved);
+            } catch (IOException e) {
+                getLogger().printf("--//WARN: cache(%s) save failed: %s%n", cacheKey.getValue(), e.getMessage());
+            }
+        }
     }
 
     private void saveConfig(Config config) {
@@ -116,21 +369,30 @@ public class OesRunner extends CLIRunner{
         jenkinsEnvironsFile.write(getEnvvars().expand(environs), "UTF-8");
     }
 
-    private Stage getStage(List<Stage> stages, String stageName) {
+    /**
+     * @return the stage named so, or all cells of the matrix stage named so.
+     */
+    private List<Stage> getStages(List<Stage> stages, String stageName) {
+        List<Stage> namedStages = new ArrayList<>();
         for (Stage stage: stages) {
-            if (stage.getName().equals(stageName)) {
-                return stage;
+            if (stage.getName().equals(stageName) || stageName.equals(stage.getMatrix())) {
+                namedStages.add(stage);
             }
         }
 
-        return null;
+        return namedStages;
     }
 
-    private boolean runStages(List<Stage> stages, Map<String, String> paramEnvirons) {
+    private boolean runStages(StageGraph stageGraph, int parallelism, Map<String, String> paramEnvirons)
+            throws InterruptedException {
+        if (!stageGraph.isSequential()) {
+            return runStageGraph(stageGraph, parallelism, paramEnvirons);
+        }
+
         boolean ret = false;
 
-        for (Stage stage : stages) {
-            ret = runStage(stage, paramEnvirons);
+        for (Stage stage : stageGraph.getStages()) {
+            ret = dispatchStage(stage, paramEnvirons);
             if (!ret) {
                 break;
             }
@@ -139,6 +401,227 @@ public class OesRunner extends CLIRunner{
         return ret;
     }
 
+    /**
+     * Run each stage once the stages it needs succeeded, up to {@code parallelism} stages at the same time.
+     * Every stage runs in a runner of its own, so environments and credential bindings of stages don't mix.
+     * A stage starts from the environment of the stages it needs and the stages they needed, in the order of
+     * the pipeline, without their credentials.
+     * When a stage fails, the running stages are cancelled and no other stage starts.
+     * Cells of a matrix stage also keep to the parallelism of the matrix, and their results are summed up at the end.
+     */
+    private boolean runStageGraph(StageGraph stageGraph, int parallelism, Map<String, String> paramEnvirons)
+            throws InterruptedException {
+
+        List<Stage> stages = stageGraph.getStages();
+        EnvVars baseEnvvars = new EnvVars(getEnvvars());
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(Math.min(parallelism, stages.size()), 1),
+                new NamingThreadFactory(new DaemonThreadFactory(), "OesRunner.stage"));
+        CompletionService<Boolean> completion = new ExecutorCompletionService<>(executor);
+        Map<Future<Boolean>, Integer> running = new HashMap<>();
+        OesRunner[] stageRunners = new OesRunner[stages.size()];
+        List<Map<String, String>> carriedEnvirons = new ArrayList<>(Collections.nCopies(stages.size(), null));
+        Set<Integer> succeeded = new HashSet<>();
+        boolean[] started = new boolean[stages.size()];
+        Map<String, Integer> runningCells = new HashMap<>();
+        String[] results = new String[stages.size()];
+        boolean ret = true;
+
+        try {
+            while (true) {
+                for (int i = 0; ret && i < stages.size(); i++) {
+                    if (started[i] || !succeeded.containsAll(stageGraph.getDependencies(i))) {
+                        continue;
+                    }
+                    Stage stage = stages.get(i);
+                    if (stage.getMatrix() != null && stage.getMatrixParallelism() > 0
+                            && runningCells.getOrDefault(stage.getMatrix(), 0) >= stage.getMatrixParallelism()) {
+                        continue;
+                    }
+                    if (stage.getMatrix() != null) {
+                        runningCells.merge(stage.getMatrix(), 1, Integer::sum);
+                    }
+                    Map<String, String> inherited = new HashMap<>();
+                    for (int dependency : new TreeSet<>(stageGraph.getDependencies(i))) {
+                        inherited.putAll(carriedEnvirons.get(dependency));
+                    }
+                    carriedEnvirons.set(i, inherited);
+                    EnvVars stageEnvvars = new EnvVars(baseEnvvars);
+                    stageEnvvars.putAll(inherited);
+                    OesRunner stageRunner = fork(stage.getName(), stageEnvvars);
+                    stageRunners[i] = stageRunner;
+                    getLogger().printf("--//INFO: start stage(%s)%n", stage.getName());
+                    running.put(completion.submit(() -> stageRunner.dispatchStage(stage, paramEnvirons)), i);
+                    started[i] = true;
+                }
+
+                if (running.isEmpty()) {
+                    break;
+                }
+
+                Future<Boolean> done = completion.take();
+                int index = running.remove(done);
+                Stage stage = stages.get(index);
+                if (stage.getMatrix() != null) {
+                    runningCells.merge(stage.getMatrix(), -1, Integer::sum);
+                }
+
+                boolean stageRet;
+                try {
+                    stageRet = done.get();
+                } catch (CancellationException e) {
+                    results[index] = "CANCELLED";
+                    continue;
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(getLogger());
+                    stageRet = false;
+                }
+                results[index] = stageRet ? "SUCCESS" : "FAILURE";
+
+                if (stageRet) {
+                    carriedEnvirons.get(index).putAll(stageRunners[index].getCarriedEnvirons());
+                    succeeded.add(index);
+                    getLogger().printf("--//INFO: done stage(%s)%n", stage.getName());
+                } else if (ret) {
+                    ret = false;
+                    getLogger().printf("--//ERR: stage(%s) failed, cancel the running stages%n", stage.getName());
+                    for (Future<Boolean> future : running.keySet()) {
+                        future.cancel(true);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            // let cancelled stages unbind their credentials
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        printMatrixResults(stages, results);
+        return ret;
+    }
+
+    private void printMatrixResults(List<Stage> stages, String[] results) {
+        Map<String, List<String>> matrixResults = new LinkedHashMap<>();
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            if (stage.getMatrix() == null) {
+                continue;
+            }
+            matrixResults.computeIfAbsent(stage.getMatrix(), key -> new ArrayList<>()).add(String.format("%s: %s",
+                    stage.getAxisValues(), results[i] == null ? "NOT_BUILT" : results[i]));
+        }
+
+        for (Map.Entry<String, List<String>> matrixResult : matrixResults.entrySet()) {
+            getLogger().printf("--//INFO: matrix stage(%s) results%n", matrixResult.getKey());
+            for (String cellResult : matrixResult.getValue()) {
+                getLogger().printf("--//INFO:   %s%n", cellResult);
+            }
+        }
+    }
+
+    /**
+     * @return the environment of the stage this runner ran, without the credentials bound for it,
+     * whose files are gone with the stage.
+     */
+    private Map<String, String> getCarriedEnvirons() {
+        Map<String, String> environs = new HashMap<>();
+        for (Map.Entry<String, String> entry : stageEnvirons.entrySet()) {
+            if (!entry.getValue().startsWith("secret://")) {
+                environs.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return environs;
+    }
+
+    /**
+     * A runner for a stage running next to other stages, its log lines are prefixed with the stage name.
+     */
+    private OesRunner fork(String name, EnvVars envvars) {
+        Charset charset = getBuild().getCharset();
+        TaskListener listener = new StreamTaskListener(
+                new LinePrefixOutputStream(getLogger(), String.format("[%s] ", name), charset), charset);
+
+        OesRunner runner = new OesRunner(this, listener);
+        runner.setEnvvars(new EnvVars(envvars));
+        return runner;
+    }
+
+    /**
+     * Run the stage in the build workspace, or on a node of its agent label.
+     */
+    private boolean dispatchStage(Stage stage, Map<String, String> paramEnvirons) {
+        boolean ret = stage.getAgentLabel() == null
+                ? runStage(stage, paramEnvirons) : runAgentStage(stage, paramEnvirons);
+        if (ret) {
+            stageOutputs.addAll(stage.getOutputs());
+            saveCheckpoint(stage);
+        }
+        return ret;
+    }
+
+    private void saveCheckpoint(Stage stage) {
+        if (checkpoint == null) {
+            return;
+        }
+        try {
+            checkpoint.saveStage(stage, buildWs);
+        } catch (IOException | InterruptedException e) {
+            // the stage succeeded, only resuming runs it again
+            getLogger().printf("--//WARN: checkpoint of stage(%s) failed: %s%n", stage.getName(), e.getMessage());
+        }
+    }
+
+    /**
+     * Run the stage in a workspace of a node of its label, with the outputs of the stages before it.
+     * Its own outputs are copied back to the build workspace when it succeeds.
+     */
+    private boolean runAgentStage(Stage stage, Map<String, String> paramEnvirons) {
+        try (StageAgent agent = StageAgent.acquire(getBuild(), stage.getName(), stage.getAgentLabel(),
+                getLogger())) {
+            FilePath agentWs = agent.getWs();
+            getLogger().printf("--//INFO: run stage(%s) on node(%s) in %s%n",
+                    stage.getName(), agent.getNodeName(), agentWs.getRemote());
+
+            OesRunner agentRunner = new OesRunner(this, agentWs, agent.createLauncher(getListener()));
+            agentRunner.setEnvvars(agent.buildEnvironment(getEnvvars(), buildWs, getListener()));
+            agentRunner.createDotOesDir();
+
+            List<String> inputs = new ArrayList<>();
+            inputs.add(DOT_OES_ENVIRONS_PROPERTIES);
+            synchronized (stageOutputs) {
+                inputs.addAll(stageOutputs);
+            }
+            copyOutputs(buildWs, agentWs, inputs);
+
+            boolean ret = agentRunner.runStage(stage, paramEnvirons);
+            // the stages needing this one start from its environment
+            stageEnvirons = agentRunner.stageEnvirons;
+            if (ret && !stage.getOutputs().isEmpty()) {
+                copyOutputs(agentWs, buildWs, stage.getOutputs());
+            }
+            return ret;
+        } catch (OesException | IOException e) {
+            getLogger().printf("--//ERR: stage(%s) on label(%s) failed: %s%n",
+                    stage.getName(), stage.getAgentLabel(), e.getMessage());
+        } catch (InterruptedException e) {
+            e.printStackTrace(getLogger());
+        }
+        return false;
+    }
+
+    /**
+     * Copy the files of the patterns between workspaces, streamed as a tar through the channels.
+     */
+    private void copyOutputs(FilePath from, FilePath to, List<String> patterns)
+            throws IOException, InterruptedException {
+        if (patterns.isEmpty()) {
+            return;
+        }
+        String includes = StringUtils.join(patterns, ",");
+        int count = from.copyRecursiveTo(includes, null, to);
+        getLogger().printf("--//INFO: copy %d files of outputs(%s) to %s%n", count, includes, to.getRemote());
+    }
+
     @SneakyThrows
     private boolean runStage(Stage stage, Map<String, String> paramEnvirons) {
 
@@ -152,6 +635,8 @@ public class OesRunner extends CLIRunner{
 
             // paramEnvirons 覆盖 environments中的环境变量
             stageEnvirons.putAll(paramEnvirons);
+            // the axis values tell the cells of a matrix stage apart
+            stageEnvirons.putAll(stage.getAxisValues());
 
             for (Map.Entry entry : stageEnvirons.entrySet()) {
                 String key = (String) entry.getKey();
@@ -166,6 +651,7 @@ public class OesRunner extends CLIRunner{
                 localEnvvars.put(key, value);
             }
 
+            this.stageEnvirons = new HashMap<>(stageEnvirons);
             // 处理内部敏感信息变量
             localEnvvars.putAll(bind(stageEnvirons));
 
@@ -210,16 +696,68 @@ public class OesRunner extends CLIRunner{
     }
 
     public boolean runStep(Step step) {
-        boolean ret = download(step);
-        if (ret) {
-            return ant(step);
+        if (step instanceof ParallelSteps) {
+            return runParallelSteps((ParallelSteps) step);
+        }
+
+        FilePath stepDir = download(step);
+        if (stepDir != null) {
+            return ant(step, stepDir);
         }
         return false;
     }
 
-    private boolean ant(Step step) {
+    /**
+     * Run the steps of a group at the same time, each in a runner with the stage environment and a log
+     * prefixed with the step id. The group fails when any of its steps fails.
+     */
+    private boolean runParallelSteps(ParallelSteps parallelSteps) {
+        List<Step> steps = parallelSteps.getSteps();
+        if (steps.isEmpty()) {
+            return true;
+        }
 
-        String runPropsFileName = String.format("%s.properties", getCurrentTime());
+        ExecutorService executor = Executors.newFixedThreadPool(steps.size(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "OesRunner.parallel"));
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (Step step : steps) {
+                OesRunner stepRunner = fork(step.getId(), getEnvvars());
+                // the secrets bound by the stage are masked in the logs of its steps as well
+                stepRunner.secretsForBuild = secretsForBuild;
+                stepRunner.setSecretsForBuild(secretsForBuild);
+                futures.add(executor.submit(() -> stepRunner.runStep(step)));
+            }
+
+            boolean ret = true;
+            for (int i = 0; i < futures.size(); i++) {
+                String stepId = steps.get(i).getId();
+                try {
+                    if (!futures.get(i).get()) {
+                        getLogger().printf("--//ERR: parallel step(%s) failed%n", stepId);
+                        ret = false;
+                    }
+                } catch (ExecutionException e) {
+                    getLogger().printf("--//ERR: parallel step(%s) failed: %s%n", stepId, e.getCause().getMessage());
+                    ret = false;
+                }
+            }
+            return ret;
+        } catch (InterruptedException e) {
+            e.printStackTrace(getLogger());
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param stepDir the package dir the step dir linked to when the step was installed
+     */
+    private boolean ant(Step step, FilePath stepDir) {
+
+        // unique, steps running at the same time may start in the same second
+        String runPropsFileName = String.format("%s-%d.properties", getCurrentTime(), RUN_SEQUENCE.incrementAndGet());
 
         FilePath ws = getWs();
         FilePath dotCIDir = new FilePath(ws, DOT_OES_CI_DIR);
@@ -245,32 +783,19 @@ public class OesRunner extends CLIRunner{
             stepProps.store(stepPropsFile.write(), "step properties");
 
             FilePath dotOesStepsDir = new FilePath(getWs(), DOT_OES_STEPS_DIR);
-            FilePath aslDir = new FilePath(dotOesStepsDir, Constants.STEP_ASL);
-            FilePath stepDir = new FilePath(dotOesStepsDir, step.getId());
+            // the packages stay as they are for this step while other builds install new ones
+            FilePath aslDir = StepDirLock.pin(new FilePath(dotOesStepsDir, Constants.STEP_ASL));
 
-            FilePath antExecFilePath = new FilePath(aslDir, "tools/ant/bin/ant");
-            if (getLauncher().isUnix()) {
-                antExecFilePath.chmod(0755);
-            } else {
-                antExecFilePath = new FilePath(aslDir, "tools/ant/bin/ant.bat");
+            StepResultCache cache = getStepResultCache(step, stepDir, aslDir, stepProps);
+            if (cache != null && restore(step, cache)) {
+                return true;
             }
 
-            ArgumentListBuilder args = new ArgumentListBuilder();
-            args.add(antExecFilePath);
-            args.add("-f");
-            // run step/run.xml
-            args.add(String.format("%s/run.xml", stepDir.getRemote()));
-            args.add(String.format("-Dasl.root=%s", aslDir.getRemote()));
-            args.add(String.format("-Dws.dir=%s", ws.getRemote()));
-            args.add(String.format("-Dbasedir=%s", ws.getRemote()));
-            // add step runtime arguments
-            args.add("-propertyfile");
-            args.add(stepPropsFile.getRemote());
-            // add run logger.
-            args.add("-logger");
-            args.add("org.apache.tools.ant.NoBannerLogger");
-
-            return execute(args);
+            boolean ret = runAnt(stepProps, stepPropsFile, aslDir, stepDir);
+            if (ret && cache != null) {
+                save(step, cache);
+            }
+            return ret;
 
         } catch (IOException e) {
             e.printStackTrace(getLogger());
@@ -280,6 +805,125 @@ public class OesRunner extends CLIRunner{
         return false;
     }
 
+    private boolean runAnt(Properties stepProps, FilePath stepPropsFile, FilePath aslDir, FilePath stepDir)
+            throws IOException, InterruptedException {
+        FilePath ws = getWs();
+
+        FilePath antExecFilePath = new FilePath(aslDir, "tools/ant/bin/ant");
+        if (getLauncher().isUnix()) {
+            antExecFilePath.chmod(0755);
+        } else {
+            antExecFilePath = new FilePath(aslDir, "tools/ant/bin/ant.bat");
+        }
+
+        AntExecMode mode = AntExecMode.of(stepProps.getProperty(AntExecMode.PROPERTY),
+                OesGlobalConfiguration.get().getAntExecMode());
+        if (mode == AntExecMode.IN_PROCESS || mode == AntExecMode.DAEMON) {
+            Map<String, String> antProps = new HashMap<>();
+            antProps.put("asl.root", aslDir.getRemote());
+            antProps.put("ws.dir", ws.getRemote());
+            antProps.put("basedir", ws.getRemote());
+            return antWithoutFork(mode, new AntRequest(aslDir.getRemote(), String.valueOf(aslVersion),
+                    new FilePath(stepDir, "run.xml").getRemote(), ws.getRemote(), stepPropsFile.getRemote(),
+                    antProps, getEnvvars()));
+        }
+
+        ArgumentListBuilder args;
+        JavaAnt javaAnt = null;
+        if (mode == AntExecMode.JAVA) {
+            javaAnt = JavaAnt.probe(ws, aslDir, String.valueOf(aslVersion), getEnvvars());
+            args = javaAnt.command(getEnvvars());
+        } else {
+            args = new ArgumentListBuilder();
+            args.add(antExecFilePath);
+        }
+        args.add("-f");
+        // run step/run.xml
+        args.add(String.format("%s/run.xml", stepDir.getRemote()));
+        args.add(String.format("-Dasl.root=%s", aslDir.getRemote()));
+        args.add(String.format("-Dws.dir=%s", ws.getRemote()));
+        args.add(String.format("-Dbasedir=%s", ws.getRemote()));
+        // add step runtime arguments
+        args.add("-propertyfile");
+        args.add(stepPropsFile.getRemote());
+        // add run logger.
+        args.add("-logger");
+        args.add("org.apache.tools.ant.NoBannerLogger");
+
+        boolean ret;
+        try (NodeAdmission.Permit ignored = NodeAdmission.get().acquire(ws, AdmissionResource.FORKED_STEPS,
+                getBuild(), 1, getLogger())) {
+            ret = execute(args);
+        }
+        if (javaAnt != null) {
+            javaAnt.finish(ws.getChannel(), ret, getLogger());
+        }
+        return ret;
+    }
+
+    /**
+     * @return the result cache of the step, or {@code null} when the step doesn't declare its outputs
+     * or the cache is disabled.
+     */
+    private StepResultCache getStepResultCache(Step step, FilePath stepDir, FilePath aslDir, Properties stepProps)
+            throws IOException, InterruptedException {
+        OesGlobalConfiguration globalConfig = OesGlobalConfiguration.get();
+        if (!globalConfig.isStepResultCacheEnabled()) {
+            return null;
+        }
+        return StepResultCache.of(getWs(), step.getId(), stepVersions.get(step.getId()), aslVersion,
+                stepDir, aslDir, stageEnvirons, stepProps, globalConfig.getStepResultCacheUrl(),
+                globalConfig.getReadTimeoutSeconds() * 1000, globalConfig.getStepResultCacheMaxSizeMb() * 1024 * 1024);
+    }
+
+    private boolean restore(Step step, StepResultCache cache) throws InterruptedException {
+        try {
+            String from = cache.restore();
+            if (from != null) {
+                getLogger().printf("--//INFO: step(%s) cache hit (%s) %s, skip ant%n", step.getId(), from, cache.getKey());
+                return true;
+            }
+        } catch (IOException e) {
+            getLogger().printf("--//WARN: step(%s) cache restore failed: %s%n", step.getId(), e.getMessage());
+        }
+        getLogger().printf("--//INFO: step(%s) cache miss %s%n", step.getId(), cache.getKey());
+        return false;
+    }
+
+    private void save(Step step, StepResultCache cache) throws InterruptedException {
+        try {
+            cache.save();
+            getLogger().printf("--//INFO: step(%s) outputs cached %s%n", step.getId(), cache.getKey());
+        } catch (IOException e) {
+            // the step succeeded, only the next run misses
+            getLogger().printf("--//WARN: step(%s) cache save failed: %s%n", step.getId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Run the step with the ant of asl in the JVM of the node or in its ant daemon,
+     * the log streams back to the build.
+     */
+    private boolean antWithoutFork(AntExecMode mode, AntRequest request) throws IOException, InterruptedException {
+        AntConsoleAnnotator log = createAntLog();
+        // steps in the daemon or the agent JVM load the node like forked steps
+        try (NodeAdmission.Permit ignored = NodeAdmission.get().acquire(getWs(), AdmissionResource.FORKED_STEPS,
+                getBuild(), 1, getLogger())) {
+            int r;
+            if (mode == AntExecMode.DAEMON) {
+                FilePath daemonDir = AntDaemonClient.install(getWs());
+                r = getWs().act(new AntDaemonClient(daemonDir.getRemote(),
+                        OesGlobalConfiguration.get().getAntDaemonIdleMinutes(), getEnvvars().get("JAVA_HOME"),
+                        request, new RemoteOutputStream(log)));
+            } else {
+                r = getWs().act(new InProcessAnt(request, new RemoteOutputStream(log), getBuild().getCharset().name()));
+            }
+            return r == 0;
+        } finally {
+            log.forceEol();
+        }
+    }
+
     public MultiBinding getMultiBinding(String envKey, String type, String from) {
 
         MultiBinding binding = null;
@@ -405,34 +1049,267 @@ public class OesRunner extends CLIRunner{
         return new String(decoder.decode(encodeStr), StandardCharsets.UTF_8);
     }
 
-    public boolean download(Step step) {
+    /**
+     * Install the step and pin the package dir its step dir links to, at once for the step id, so that a stage
+     * installing another version of the step in the same workspace doesn't swap the package under this step.
+     *
+     * @return the pinned package dir, or {@code null} when the step can't be installed
+     */
+    public FilePath download(Step step) {
         PrintStream LOG = getLogger();
         try {
             StepRegistry stepRegistry = RegistryUtil.getStepRegistry();
             String stepId = step.getId();
 
             FilePath dotOesStepsDir = new FilePath(getWs(), DOT_OES_STEPS_DIR);
-            LOG.printf("--//INFO: get step(%s) package...%n", stepId);
-            String version = stepRegistry.download(step, dotOesStepsDir);
+            InstalledStep installed = installedSteps.computeIfAbsent(stepId, key -> new InstalledStep());
+            String version;
+            FilePath stepDir;
+            synchronized (installed) {
+                version = fetch(stepRegistry, step, dotOesStepsDir, installed);
+                stepDir = StepDirLock.pin(new FilePath(dotOesStepsDir, stepId));
+            }
+            stepVersions.put(stepId, String.valueOf(version));
             LOG.printf("--//INFO: done step (%s:%s).%n", stepId, version);
-            FilePath runFilePath = new FilePath(dotOesStepsDir, String.format("%s/run.xml", stepId));
+            FilePath runFilePath = new FilePath(stepDir, "run.xml");
 
             if (!runFilePath.exists()) {
                 LOG.printf("--/ERR: The step type(%s) is not supported.", stepId);
-                return false;
+                return null;
             }
 
-            LOG.println("--//INFO: get asl(ant-script-library) package ...");
-
-            Step aslStep = new Step(Constants.STEP_ASL);
-            String aslVersion = stepRegistry.download(aslStep, dotOesStepsDir);
-            LOG.printf("--//INFO: done asl version: %s.%n", aslVersion);
+            if (aslVersion == null) {
+                LOG.println("--//INFO: get asl(ant-script-library) package ...");
+                InstalledStep installedAsl = installedSteps.computeIfAbsent(Constants.STEP_ASL,
+                        key -> new InstalledStep());
+                synchronized (installedAsl) {
+                    aslVersion = fetch(stepRegistry, new Step(Constants.STEP_ASL), dotOesStepsDir, installedAsl);
+                }
+                LOG.printf("--//INFO: done asl version: %s.%n", aslVersion);
+            }
 
-            return true;
+            return stepDir;
 
         } catch (Exception e) {
             e.printStackTrace(getLogger());
-            return false;
+            return null;
+        }
+    }
+
+    /**
+     * The steps of the stages and asl, each step as written in the pipeline once.
+     */
+    private Collection<Step> getPipelineSteps(List<Stage> stages) {
+        Map<String, Step> steps = new LinkedHashMap<>();
+        for (Stage stage : stages) {
+            List<Step> stageSteps = new ArrayList<>(stage.getSteps());
+            stageSteps.addAll(stage.getAfterSteps());
+            for (Step step : stageSteps) {
+                if (step instanceof ParallelSteps) {
+                    for (Step parallelStep : ((ParallelSteps) step).getSteps()) {
+                        steps.putIfAbsent(StepLock.keyOf(parallelStep), parallelStep);
+                    }
+                } else {
+                    steps.putIfAbsent(StepLock.keyOf(step), step);
+                }
+            }
+        }
+        Step aslStep = new Step(Constants.STEP_ASL);
+        steps.putIfAbsent(StepLock.keyOf(aslStep), aslStep);
+        return steps.values();
+    }
+
+    /**
+     * Resolve the versions of all steps of the stages once, in parallel, and save them to
+     * {@code .oes/steps.lock}. Fails before any stage runs when a step can't be resolved.
+     */
+    private boolean resolve(List<Stage> stages, Map<String, String> paramEnvirons,
+                            PipelineCheckpoint resumedCheckpoint, ExecutorService executor)
+            throws OesException, IOException, InterruptedException {
+
+        FilePath lockFile = new FilePath(getWs(), StepLock.LOCK_FILE);
+        StepLock lock = new StepLock();
+        if (resumedCheckpoint != null) {
+            // the remaining stages run the step versions of the run resumed from
+            getLogger().println("--//INFO: use step versions of the run resumed from");
+            lock = resumedCheckpoint.readStepLock();
+        } else if (STEPS_LOCK_FROZEN.equals(paramEnvirons.get(PARAM_STEPS_LOCK))) {
+            getLogger().printf("--//INFO: use step versions of %s%n", lockFile.getRemote());
+            lock = StepLock.read(lockFile);
+        }
+
+        StepRegistry stepRegistry = RegistryUtil.getStepRegistry();
+        Map<Step, Future<StepPackage>> resolving = new LinkedHashMap<>();
+        for (Step step : getPipelineSteps(stages)) {
+            if (!lock.contains(step)) {
+                resolving.put(step, executor.submit(() -> stepRegistry.resolve(step, getWs())));
+            }
+        }
+
+        // steps with a stored package wait for the registry this long, all together
+        long deadline = System.currentTimeMillis()
+                + TimeUnit.SECONDS.toMillis(OesGlobalConfiguration.get().getRevalidateTimeoutSeconds());
+
+        boolean ret = true;
+        for (Map.Entry<Step, Future<StepPackage>> entry : resolving.entrySet()) {
+            Step step = entry.getKey();
+            String stepKey = StepLock.keyOf(step);
+            StepPackage stored = entry.getValue().isDone() ? null : findStored(step);
+            try {
+                StepPackage stepPackage = stored == null ? entry.getValue().get()
+                        : entry.getValue().get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                lock.put(step, stepPackage);
+                getLogger().printf("--//INFO: resolved step(%s) -> %s%n", stepKey, stepPackage.getVersion());
+            } catch (TimeoutException e) {
+                entry.getValue().cancel(true);
+                lock.put(step, stored);
+                getLogger().printf("--//WARN: resolve step(%s) is slow, use stored %s, revalidate in background%n",
+                        stepKey, stored.getVersion());
+                revalidate(stepRegistry, step);
+            } catch (ExecutionException e) {
+                if (stored == null) {
+                    stored = findStored(step);
+                }
+                if (stored == null) {
+                    getLogger().printf("--//ERR: resolve step(%s) failed: %s%n", stepKey, e.getCause().getMessage());
+                    ret = false;
+                    continue;
+                }
+                lock.put(step, stored);
+                getLogger().printf("--//WARN: resolve step(%s) failed: %s, use stored %s, revalidate in background%n",
+                        stepKey, e.getCause().getMessage(), stored.getVersion());
+                revalidate(stepRegistry, step);
+            }
+        }
+
+        if (ret) {
+            lock.write(lockFile);
+            checkpoint.saveStepLock(lock);
+            stepLock = lock;
+        }
+        return ret;
+    }
+
+    /**
+     * @return the latest package of the step in the step store, when stale packages may be run,
+     * or {@code null}.
+     */
+    private StepPackage findStored(Step step) throws IOException, InterruptedException {
+        OesGlobalConfiguration globalConfig = OesGlobalConfiguration.get();
+        if (!globalConfig.isStaleWhileRevalidate() || !globalConfig.isStepStoreEnabled()) {
+            return null;
+        }
+        StepPackageStore store = StepPackageStore.forWorkspace(getWs());
+        return store == null ? null : store.findLatest(step.getId(), step.getVersion());
+    }
+
+    /**
+     * Resolve the step again in the background and store its package, for the builds after this one.
+     */
+    private void revalidate(StepRegistry stepRegistry, Step step) {
+        StepPackageStore store = StepPackageStore.forWorkspace(getWs());
+        if (store != null) {
+            store.revalidate(stepRegistry, step, getWs());
+        }
+    }
+
+    /**
+     * Start downloading the step packages of the stages in the background, so that registry
+     * time overlaps the run of the preceding steps.
+     */
+    private void prefetch(List<Stage> stages, ExecutorService executor) throws OesException {
+        if (OesGlobalConfiguration.get().getPrefetchThreads() <= 0) {
+            return;
+        }
+
+        StepRegistry stepRegistry = RegistryUtil.getStepRegistry();
+        FilePath dotOesStepsDir = new FilePath(getWs(), DOT_OES_STEPS_DIR);
+
+        for (Step step : getPipelineSteps(stages)) {
+            // one prefetch per step id, versions of a step share the step dir.
+            if (prefetches.containsKey(step.getId())) {
+                continue;
+            }
+            Future<String> future = executor.submit(() -> {
+                getLogger().printf("--//INFO: prefetch step(%s) package...%n", step.getId());
+                return install(stepRegistry, step, dotOesStepsDir);
+            });
+            prefetches.put(step.getId(), new Prefetch(step.getVersion(), future));
+        }
+    }
+
+    /**
+     * Must be called holding the installed step.
+     */
+    private String fetch(StepRegistry stepRegistry, Step step, FilePath dotOesStepsDir, InstalledStep installed)
+            throws IOException, InterruptedException {
+
+        Prefetch prefetch = prefetches.get(step.getId());
+        if (prefetch != null) {
+            // wait for the prefetch, even of another version, it writes the same step dir.
+            try {
+                String prefetchedVersion = prefetch.future.get();
+                // the step dir links to the prefetched package until a stage installs the step again
+                if (!installed.reinstalled && prefetch.version.equals(step.getVersion())) {
+                    return prefetchedVersion;
+                }
+            } catch (ExecutionException e) {
+                // a failed prefetch doesn't fail the step, it is installed again
+                getLogger().printf("--//WARN: prefetch step(%s) failed: %s%n", step.getId(), e.getCause().getMessage());
+            }
+        }
+
+        getLogger().printf("--//INFO: get step(%s) package...%n", step.getId());
+        installed.reinstalled = true;
+        return install(stepRegistry, step, dotOesStepsDir);
+    }
+
+    private String install(StepRegistry stepRegistry, Step step, FilePath dotOesStepsDir)
+            throws IOException, InterruptedException {
+        try (NodeAdmission.Permit ignored = NodeAdmission.get().acquire(getWs(), AdmissionResource.DOWNLOADS,
+                getBuild(), 1, getLogger())) {
+            return installPackage(stepRegistry, step, dotOesStepsDir);
+        }
+    }
+
+    private String installPackage(StepRegistry stepRegistry, Step step, FilePath dotOesStepsDir)
+            throws IOException, InterruptedException {
+
+        StepPackage resolved = stepLock.get(step);
+        OesGlobalConfiguration globalConfig = OesGlobalConfiguration.get();
+        StepPackageStore store = globalConfig.isStepStoreEnabled() ? StepPackageStore.forWorkspace(getWs()) : null;
+
+        if (store == null) {
+            StepPackageStore.detach(new FilePath(dotOesStepsDir, step.getId()));
+            if (resolved != null) {
+                return stepRegistry.download(resolved, dotOesStepsDir);
+            }
+            return stepRegistry.download(step, dotOesStepsDir);
+        }
+
+        String version = store.install(stepRegistry, step, resolved, dotOesStepsDir,
+                globalConfig.isStaleWhileRevalidate(), getLogger());
+        store.evict(globalConfig.getStepStoreMaxSizeMb() * 1024 * 1024);
+        return version;
+    }
+
+    /**
+     * The step dir of a step id in the workspace, held while the step is installed and pinned.
+     */
+    private static final class InstalledStep {
+
+        private boolean reinstalled;
+    }
+
+    private static final class Prefetch {
+
+        private final String version;
+
+        private final Future<String> future;
+
+        Prefetch(String version, Future<String> future) {
+            this.version = version;
+            this.future = future;
         }
     }
 }
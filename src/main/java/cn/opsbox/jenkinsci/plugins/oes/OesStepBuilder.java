@@ -1,25 +1,24 @@
 package cn.opsbox.jenkinsci.plugins.oes;
 
 import cn.opsbox.jenkinsci.plugins.oes.pipeline.Step;
-import cn.opsbox.jenkinsci.plugins.oes.registry.RegistryUtil;
-import cn.opsbox.jenkinsci.plugins.oes.util.Constants;
-import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import cn.opsbox.jenkinsci.plugins.oes.registry.StepCatalog;
 import hudson.*;
 import hudson.model.AbstractProject;
+import hudson.model.AutoCompletionCandidates;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
-import hudson.util.ListBoxModel;
+import hudson.util.FormValidation;
 import jenkins.tasks.SimpleBuildStep;
 import lombok.Getter;
 import lombok.NonNull;
-import lombok.SneakyThrows;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 
 import java.io.IOException;
 import java.util.*;
@@ -94,25 +93,25 @@ public class OesStepBuilder extends Builder implements SimpleBuildStep {
             return true;
         }
 
-        @SneakyThrows
-        public ListBoxModel doFillStepIdItems() {
-
-            ListBoxModel items = new ListBoxModel();
-            try {
-                List<String> stepIds = RegistryUtil.getStepRegistry().getStepList();
-                Collections.sort(stepIds);
-                for (String stepId : stepIds) {
-                    if (StringUtils.equalsIgnoreCase(stepId, Constants.STEP_ASL)) {
-                        continue;
-                    }
-                    items.add(stepId, stepId);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                return new StandardListBoxModel().includeEmptyValue();
+        public AutoCompletionCandidates doAutoCompleteStepId(@QueryParameter String value) {
+            AutoCompletionCandidates candidates = new AutoCompletionCandidates();
+            for (String stepId : StepCatalog.get().search(value)) {
+                candidates.add(stepId);
+            }
+            return candidates;
+        }
+
+        public FormValidation doCheckStepId(@QueryParameter String value) {
+            if (StringUtils.isBlank(value)) {
+                return FormValidation.error("step name is required");
             }
 
-            return items;
+            StepCatalog catalog = StepCatalog.get();
+            String stepId = new Step(value.trim()).getId();
+            if (catalog.isLoaded() && !stepId.contains("/") && !catalog.contains(stepId)) {
+                return FormValidation.warning(String.format("step(%s) is not found in the step registry", stepId));
+            }
+            return FormValidation.ok();
         }
 
         @Override
@@ -0,0 +1,204 @@
+package cn.opsbox.jenkinsci.plugins.oes;
+
+import cn.opsbox.jenkinsci.plugins.oes.pipeline.Stage;
+import cn.opsbox.jenkinsci.plugins.oes.registry.StepLock;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.util.io.ArchiverFactory;
+import lombok.Getter;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The stages of a run which succeeded, kept in the run dir so a rebuild can resume from the failed stage.
+ *
+ * <pre>
+ * oes-checkpoint/
+ *   steps.lock                      the step versions of the run
+ *   stages/0001/environs.properties the resolved environment of the stage
+ *   stages/0001/outputs.tar.gz      the outputs the stage declares
+ *   stages/0001/stage.properties    the name and outputs of the stage, written last
+ * </pre>
+ */
+public class PipelineCheckpoint {
+
+    public static final String CHECKPOINT_DIR = "oes-checkpoint";
+
+    private static final String STEPS_LOCK_FILE = "steps.lock";
+    private static final String STAGES_DIR = "stages";
+    private static final String STAGE_FILE = "stage.properties";
+    private static final String ENVIRONS_FILE = "environs.properties";
+    private static final String OUTPUTS_FILE = "outputs.tar.gz";
+
+    private static final String KEY_NAME = "name";
+    private static final String KEY_OUTPUTS = "outputs";
+
+    private final File dir;
+
+    private PipelineCheckpoint(File dir) {
+        this.dir = dir;
+    }
+
+    public static PipelineCheckpoint of(Run<?, ?> run) {
+        return new PipelineCheckpoint(new File(run.getRootDir(), CHECKPOINT_DIR));
+    }
+
+    /**
+     * @return whether the run resolved its steps, so it can be resumed.
+     */
+    public boolean exists() {
+        return new File(dir, STEPS_LOCK_FILE).isFile();
+    }
+
+    public void saveStepLock(StepLock lock) throws IOException, InterruptedException {
+        Files.createDirectories(dir.toPath());
+        lock.write(new FilePath(new File(dir, STEPS_LOCK_FILE)));
+    }
+
+    public StepLock readStepLock() throws IOException, InterruptedException {
+        return StepLock.read(new FilePath(new File(dir, STEPS_LOCK_FILE)));
+    }
+
+    /**
+     * Keep the resolved environment of the stage and its outputs in the workspace.
+     */
+    public synchronized void saveStage(Stage stage, FilePath ws) throws IOException, InterruptedException {
+        File stageDir = newStageDir();
+
+        Properties environs = new Properties();
+        for (Map.Entry<String, ?> environ : ((Map<String, ?>) stage.getEnvironment()).entrySet()) {
+            environs.setProperty(environ.getKey(), String.valueOf(environ.getValue()));
+        }
+        store(environs, new File(stageDir, ENVIRONS_FILE));
+
+        if (!stage.getOutputs().isEmpty()) {
+            try (OutputStream out = new FileOutputStream(new File(stageDir, OUTPUTS_FILE))) {
+                ws.archive(ArchiverFactory.TARGZ, out, StringUtils.join(stage.getOutputs(), ","));
+            }
+        }
+
+        Properties stageProps = new Properties();
+        stageProps.setProperty(KEY_NAME, stage.getName());
+        stageProps.setProperty(KEY_OUTPUTS, StringUtils.join(stage.getOutputs(), ","));
+        store(stageProps, new File(stageDir, STAGE_FILE));
+    }
+
+    /**
+     * Keep a stage of the checkpoint of the run resumed from, so this run can be resumed as well.
+     */
+    public synchronized void copyStage(CompletedStage stage) throws IOException {
+        File stageDir = newStageDir();
+        for (String name : new String[]{ENVIRONS_FILE, OUTPUTS_FILE, STAGE_FILE}) {
+            File from = new File(stage.dir, name);
+            if (from.isFile()) {
+                Files.copy(from.toPath(), new File(stageDir, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /**
+     * Remove the checkpoint, a run which succeeded has nothing to resume.
+     */
+    public void delete() throws IOException, InterruptedException {
+        new FilePath(dir).deleteRecursive();
+    }
+
+    /**
+     * @return the stages which succeeded, in the order they finished.
+     */
+    public List<CompletedStage> getCompletedStages() throws IOException {
+        List<CompletedStage> stages = new ArrayList<>();
+        for (File stageDir : listStageDirs()) {
+            File stageFile = new File(stageDir, STAGE_FILE);
+            if (!stageFile.isFile()) {
+                // the run stopped while saving the stage
+                continue;
+            }
+            Properties stageProps = load(stageFile);
+            String outputs = stageProps.getProperty(KEY_OUTPUTS, "");
+            stages.add(new CompletedStage(stageDir, stageProps.getProperty(KEY_NAME),
+                    outputs.isEmpty() ? new ArrayList<>() : Arrays.asList(StringUtils.split(outputs, ","))));
+        }
+        return stages;
+    }
+
+    private File[] listStageDirs() {
+        File[] stageDirs = new File(dir, STAGES_DIR).listFiles(File::isDirectory);
+        if (stageDirs == null) {
+            return new File[0];
+        }
+        Arrays.sort(stageDirs);
+        return stageDirs;
+    }
+
+    private File newStageDir() throws IOException {
+        File stageDir = new File(new File(dir, STAGES_DIR), String.format("%04d", listStageDirs().length + 1));
+        Files.createDirectories(stageDir.toPath());
+        return stageDir;
+    }
+
+    private static void store(Properties properties, File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, null);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    @Getter
+    public static class CompletedStage {
+
+        private final File dir;
+
+        private final String name;
+
+        private final List<String> outputs;
+
+        CompletedStage(File dir, String name, List<String> outputs) {
+            this.dir = dir;
+            this.name = name;
+            this.outputs = outputs;
+        }
+
+        public Map<String, String> getEnvirons() throws IOException {
+            Map<String, String> environs = new LinkedHashMap<>();
+            File environsFile = new File(dir, ENVIRONS_FILE);
+            if (environsFile.isFile()) {
+                Properties properties = load(environsFile);
+                for (String key : properties.stringPropertyNames()) {
+                    environs.put(key, properties.getProperty(key));
+                }
+            }
+            return environs;
+        }
+
+        public void restoreOutputs(FilePath ws) throws IOException, InterruptedException {
+            File outputsFile = new File(dir, OUTPUTS_FILE);
+            if (outputsFile.isFile()) {
+                new FilePath(outputsFile).untar(ws, FilePath.TarCompression.GZIP);
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package cn.opsbox.jenkinsci.plugins.oes;
+
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.InvisibleAction;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.ParametersAction;
+import hudson.model.Run;
+import jenkins.model.ParameterizedJobMixIn;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resume from failure: a rebuild with the parameters of a failed run, which runs only the stages that didn't
+ * succeed in it. The stages which succeeded are skipped, their environment and outputs come from the checkpoint
+ * of the run.
+ */
+public class PipelineResumeAction implements RunAction2 {
+
+    public static final String URL_NAME = "oes-resume";
+
+    private transient Run<?, ?> run;
+
+    @Override
+    public void onAttached(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public String getIconFileName() {
+        if (run == null || run.isBuilding() || !run.getParent().hasPermission(Item.BUILD)
+                || !PipelineCheckpoint.of(run).exists()) {
+            return null;
+        }
+        return "redo.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Resume from Failure";
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    @RequirePOST
+    public HttpResponse doResume() {
+        Job<?, ?> job = run.getParent();
+        job.checkPermission(Item.BUILD);
+        if (!(job instanceof ParameterizedJobMixIn.ParameterizedJob) || !PipelineCheckpoint.of(run).exists()) {
+            return HttpResponses.error(400, String.format("%s has no checkpoint to resume from", run.getFullDisplayName()));
+        }
+
+        List<Action> actions = new ArrayList<>();
+        actions.add(new CauseAction(new ResumeCause(run.getNumber())));
+        actions.add(new ResumedFrom(run.getNumber()));
+        ParametersAction parameters = run.getAction(ParametersAction.class);
+        if (parameters != null) {
+            actions.add(new ParametersAction(parameters.getParameters()));
+        }
+        ParameterizedJobMixIn.scheduleBuild2(job, 0, actions.toArray(new Action[0]));
+        return HttpResponses.redirectViaContextPath(job.getUrl());
+    }
+
+    /**
+     * The run a rebuild resumes from.
+     */
+    public static class ResumedFrom extends InvisibleAction {
+
+        private final int number;
+
+        ResumedFrom(int number) {
+            this.number = number;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+    }
+
+    public static class ResumeCause extends Cause {
+
+        private final int number;
+
+        ResumeCause(int number) {
+            this.number = number;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return String.format("Resumed from failed build #%d", number);
+        }
+    }
+}
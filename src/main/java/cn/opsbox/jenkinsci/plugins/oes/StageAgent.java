@@ -0,0 +1,336 @@
+package cn.opsbox.jenkinsci.plugins.oes;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.ResourceList;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.SubTask;
+import hudson.model.queue.Tasks;
+import hudson.slaves.WorkspaceList;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A node of a label with a workspace leased for a stage, released when the stage is done.
+ *
+ * The stage is scheduled as a task of the queue, which picks the node and the executor: the node restrictions,
+ * the executors of the node and the authentication of the build (see {@code QueueItemAuthenticator}) apply to
+ * the stage like to a build. The task holds the executor until the stage is done, aborting it aborts the stage.
+ */
+public final class StageAgent implements Closeable {
+
+    private final StageExecutable executable;
+
+    private final Node node;
+
+    private final Computer computer;
+
+    private final WorkspaceList.Lease lease;
+
+    private StageAgent(StageExecutable executable, Node node, Computer computer, WorkspaceList.Lease lease) {
+        this.executable = executable;
+        this.node = node;
+        this.computer = computer;
+        this.lease = lease;
+    }
+
+    /**
+     * Wait for an executor of a node of the label, then lease a workspace of the job on that node.
+     */
+    public static StageAgent acquire(Run<?, ?> build, String stageName, String label, PrintStream logger)
+            throws OesException, IOException, InterruptedException {
+        Label nodeLabel = Jenkins.get().getLabel(label);
+        if (nodeLabel == null) {
+            throw new OesException(String.format("label(%s) is not valid", label));
+        }
+
+        StageTask task = new StageTask(build, stageName, nodeLabel);
+        if (Queue.getInstance().schedule2(task, 0).getItem() == null) {
+            throw new OesException(String.format("stage(%s) can't be scheduled", stageName));
+        }
+        logger.printf("--//INFO: stage(%s) waits for an executor of label(%s)%n", stageName, label);
+
+        StageExecutable executable = task.executable;
+        Computer computer;
+        try {
+            computer = executable.awaitStart();
+        } catch (InterruptedException e) {
+            Queue.getInstance().cancel(task);
+            executable.done();
+            throw e;
+        }
+
+        try {
+            Node node = computer == null ? null : computer.getNode();
+            if (node == null || node.getChannel() == null) {
+                throw new OesException(String.format("node of label(%s) went offline", label));
+            }
+
+            Job<?, ?> job = build.getParent();
+            FilePath workspace = job instanceof TopLevelItem
+                    ? node.getWorkspaceFor((TopLevelItem) job)
+                    : null;
+            if (workspace == null) {
+                FilePath rootPath = node.getRootPath();
+                if (rootPath == null) {
+                    throw new OesException(String.format("node(%s) is offline", node.getNodeName()));
+                }
+                workspace = rootPath.child("workspace").child(job.getFullName());
+            }
+
+            // builds of the job on the node and other stages get workspaces of their own, like ws@2
+            WorkspaceList.Lease lease = computer.getWorkspaceList().allocate(workspace);
+            return new StageAgent(executable, node, computer, lease);
+        } catch (OesException | IOException | InterruptedException | RuntimeException e) {
+            executable.done();
+            throw e;
+        }
+    }
+
+    public String getNodeName() {
+        return node.getNodeName();
+    }
+
+    public FilePath getWs() {
+        return lease.path;
+    }
+
+    public Launcher createLauncher(TaskListener listener) {
+        return node.createLauncher(listener);
+    }
+
+    /**
+     * The environment of the node with the build variables of the build environment,
+     * the system environment of the node the build runs on is left out.
+     */
+    public EnvVars buildEnvironment(EnvVars buildEnvvars, FilePath buildWs, TaskListener listener)
+            throws IOException, InterruptedException {
+
+        EnvVars envvars = new EnvVars(computer.getEnvironment());
+        envvars.putAll(computer.buildEnvironment(listener));
+
+        Computer buildComputer = buildWs.toComputer();
+        EnvVars buildSystemEnvvars = buildComputer == null ? new EnvVars() : buildComputer.getEnvironment();
+        for (Map.Entry<String, String> entry : buildEnvvars.entrySet()) {
+            if (!entry.getValue().equals(buildSystemEnvvars.get(entry.getKey()))) {
+                envvars.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        envvars.put("NODE_NAME", getNodeName());
+        envvars.put("NODE_LABELS", Util.join(node.getAssignedLabels(), " "));
+        envvars.put("WORKSPACE", getWs().getRemote());
+        return envvars;
+    }
+
+    @Override
+    public void close() {
+        try {
+            lease.release();
+        } finally {
+            executable.done();
+        }
+    }
+
+    /**
+     * The task of a stage in the queue, it runs as the build and on the nodes of the label of the stage.
+     */
+    private static final class StageTask implements Queue.Task, Queue.TransientTask {
+
+        private final Run<?, ?> build;
+
+        private final String stageName;
+
+        private final Label label;
+
+        private final StageExecutable executable;
+
+        StageTask(Run<?, ?> build, String stageName, Label label) {
+            this.build = build;
+            this.stageName = stageName;
+            this.label = label;
+            // the thread of the stage is interrupted when the executor is aborted
+            this.executable = new StageExecutable(this, Thread.currentThread());
+        }
+
+        @Override
+        public Label getAssignedLabel() {
+            return label;
+        }
+
+        @Override
+        public Node getLastBuiltOn() {
+            return null;
+        }
+
+        @Override
+        public long getEstimatedDuration() {
+            return -1;
+        }
+
+        @Override
+        public Queue.Executable createExecutable() {
+            return executable;
+        }
+
+        @Override
+        public Queue.Task getOwnerTask() {
+            return this;
+        }
+
+        @Override
+        public Object getSameNodeConstraint() {
+            return null;
+        }
+
+        @Override
+        public ResourceList getResourceList() {
+            return new ResourceList();
+        }
+
+        @Override
+        public boolean isBuildBlocked() {
+            return false;
+        }
+
+        @Override
+        public String getWhyBlocked() {
+            return null;
+        }
+
+        @Override
+        public CauseOfBlockage getCauseOfBlockage() {
+            return null;
+        }
+
+        @Override
+        public String getName() {
+            return getFullDisplayName();
+        }
+
+        @Override
+        public String getFullDisplayName() {
+            return String.format("%s stage(%s)", build.getFullDisplayName(), stageName);
+        }
+
+        @Override
+        public String getDisplayName() {
+            return getFullDisplayName();
+        }
+
+        @Override
+        public void checkAbortPermission() {
+            build.getParent().checkPermission(Item.CANCEL);
+        }
+
+        @Override
+        public boolean hasAbortPermission() {
+            return build.getParent().hasPermission(Item.CANCEL);
+        }
+
+        @Override
+        public String getUrl() {
+            return build.getUrl();
+        }
+
+        @Override
+        public boolean isConcurrentBuild() {
+            return true;
+        }
+
+        @Override
+        public Collection<? extends SubTask> getSubTasks() {
+            return Collections.singleton(this);
+        }
+
+        @Override
+        public Authentication getDefaultAuthentication() {
+            // the authentication the build runs as
+            return Tasks.getAuthenticationOf(build.getParent() instanceof Queue.Task
+                    ? (Queue.Task) build.getParent() : this);
+        }
+
+        @Override
+        public Authentication getDefaultAuthentication(Queue.Item item) {
+            return getDefaultAuthentication();
+        }
+    }
+
+    /**
+     * Holds the executor it runs on until the stage is done.
+     */
+    private static final class StageExecutable implements Queue.Executable {
+
+        private final StageTask task;
+
+        private final Thread stageThread;
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile Computer computer;
+
+        StageExecutable(StageTask task, Thread stageThread) {
+            this.task = task;
+            this.stageThread = stageThread;
+        }
+
+        @Override
+        public SubTask getParent() {
+            return task;
+        }
+
+        @Override
+        public long getEstimatedDuration() {
+            return -1;
+        }
+
+        @Override
+        public void run() {
+            Executor executor = Executor.currentExecutor();
+            computer = executor == null ? null : executor.getOwner();
+            started.countDown();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                // the executor was aborted
+                stageThread.interrupt();
+            }
+        }
+
+        Computer awaitStart() throws InterruptedException {
+            started.await();
+            return computer;
+        }
+
+        void done() {
+            done.countDown();
+        }
+
+        @Override
+        public String toString() {
+            return task.getFullDisplayName();
+        }
+    }
+}
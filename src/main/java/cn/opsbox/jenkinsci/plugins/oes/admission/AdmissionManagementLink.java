@@ -0,0 +1,42 @@
+package cn.opsbox.jenkinsci.plugins.oes.admission;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+
+import java.util.List;
+
+/**
+ * The use and the waits of the limits of each node, on the manage page.
+ */
+@Extension
+public class AdmissionManagementLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "computer.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "OES Admission Control";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Steps, downloads and extractions of step packages running and waiting on each node";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "oes-admission";
+    }
+
+    @Override
+    public Category getCategory() {
+        return Category.STATUS;
+    }
+
+    public List<NodeAdmission.Stats> getStats() {
+        return NodeAdmission.get().getStats();
+    }
+}
@@ -0,0 +1,53 @@
+package cn.opsbox.jenkinsci.plugins.oes.admission;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+import lombok.Getter;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * The limits of a node for the builds running on it, in place of the global ones.
+ * An empty limit takes the global one, 0 is unlimited.
+ */
+public class AdmissionNodeProperty extends NodeProperty<Node> {
+
+    @Getter
+    private Integer maxForkedSteps;
+
+    @Getter
+    private Integer maxDownloads;
+
+    @Getter
+    private Integer maxExtractionMb;
+
+    @DataBoundConstructor
+    public AdmissionNodeProperty() {
+    }
+
+    @DataBoundSetter
+    public void setMaxForkedSteps(Integer maxForkedSteps) {
+        this.maxForkedSteps = maxForkedSteps;
+    }
+
+    @DataBoundSetter
+    public void setMaxDownloads(Integer maxDownloads) {
+        this.maxDownloads = maxDownloads;
+    }
+
+    @DataBoundSetter
+    public void setMaxExtractionMb(Integer maxExtractionMb) {
+        this.maxExtractionMb = maxExtractionMb;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends NodePropertyDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "OES Admission Control";
+        }
+    }
+}
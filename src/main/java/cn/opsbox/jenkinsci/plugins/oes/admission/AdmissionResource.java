@@ -0,0 +1,32 @@
+package cn.opsbox.jenkinsci.plugins.oes.admission;
+
+/**
+ * The resources of a node limited for the builds running on it.
+ */
+public enum AdmissionResource {
+
+    /**
+     * steps running ant at the same time, in a process of their own, in the ant daemon or in the agent JVM.
+     */
+    FORKED_STEPS("ant steps"),
+
+    /**
+     * step packages downloaded at the same time.
+     */
+    DOWNLOADS("downloads"),
+
+    /**
+     * bytes of step packages streamed to the node for extraction at the same time.
+     */
+    EXTRACTION_BYTES("extraction bytes");
+
+    private final String displayName;
+
+    AdmissionResource(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
@@ -0,0 +1,141 @@
+package cn.opsbox.jenkinsci.plugins.oes.admission;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Permits of a resource of a node, handed out round robin between the owners waiting for them,
+ * so a build starting many steps at once doesn't keep the node from the other builds.
+ *
+ * Waiting owners are served in turn, each with its oldest request. A request above the capacity
+ * is granted when no permit is in use.
+ */
+final class FairLimiter {
+
+    private long capacity;
+
+    private long used;
+
+    /**
+     * the requests waiting of each owner, the owner served next first.
+     */
+    private final LinkedHashMap<Object, Deque<Waiter>> waiting = new LinkedHashMap<>();
+
+    private long acquiredCount;
+
+    private long waitedCount;
+
+    private long waitedNanos;
+
+    synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+        grant();
+    }
+
+    /**
+     * @return the nanoseconds waited for the permits.
+     */
+    synchronized long acquire(Object owner, long amount) throws InterruptedException {
+        acquiredCount++;
+        if (waiting.isEmpty() && fits(amount)) {
+            used += amount;
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        Waiter waiter = new Waiter(amount);
+        waiting.computeIfAbsent(owner, key -> new ArrayDeque<>()).add(waiter);
+        try {
+            while (!waiter.granted) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            if (waiter.granted) {
+                used -= amount;
+            } else {
+                Deque<Waiter> ownerWaiting = waiting.get(owner);
+                ownerWaiting.remove(waiter);
+                if (ownerWaiting.isEmpty()) {
+                    waiting.remove(owner);
+                }
+            }
+            grant();
+            throw e;
+        }
+
+        long nanos = System.nanoTime() - start;
+        waitedCount++;
+        waitedNanos += nanos;
+        return nanos;
+    }
+
+    synchronized void release(long amount) {
+        used -= amount;
+        grant();
+    }
+
+    synchronized long getCapacity() {
+        return capacity;
+    }
+
+    synchronized long getUsed() {
+        return used;
+    }
+
+    synchronized long getAcquiredCount() {
+        return acquiredCount;
+    }
+
+    synchronized long getWaitedCount() {
+        return waitedCount;
+    }
+
+    synchronized long getWaitedNanos() {
+        return waitedNanos;
+    }
+
+    private boolean fits(long amount) {
+        return used == 0 || used + amount <= capacity;
+    }
+
+    private void grant() {
+        boolean granted = false;
+        while (!waiting.isEmpty()) {
+            Iterator<Map.Entry<Object, Deque<Waiter>>> owners = waiting.entrySet().iterator();
+            Map.Entry<Object, Deque<Waiter>> next = owners.next();
+            Waiter waiter = next.getValue().peek();
+            // the owner in turn waits for room, the owners after it don't overtake it
+            if (!fits(waiter.amount)) {
+                break;
+            }
+
+            next.getValue().poll();
+            waiter.granted = true;
+            used += waiter.amount;
+            granted = true;
+
+            // the owner goes to the end of the turn
+            owners.remove();
+            if (!next.getValue().isEmpty()) {
+                waiting.put(next.getKey(), next.getValue());
+            }
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    private static final class Waiter {
+
+        private final long amount;
+
+        private boolean granted;
+
+        Waiter(long amount) {
+            this.amount = amount;
+        }
+    }
+}
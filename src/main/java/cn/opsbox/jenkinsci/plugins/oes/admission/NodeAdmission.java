@@ -0,0 +1,323 @@
+package cn.opsbox.jenkinsci.plugins.oes.admission;
+
+import cn.opsbox.jenkinsci.plugins.oes.config.OesGlobalConfiguration;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control of the nodes: the forked steps, package downloads and package extraction of all builds
+ * of a node share its limits, the builds waiting take turns.
+ *
+ * The limits come from the {@link AdmissionNodeProperty} of the node, or from the global configuration.
+ * The waits are told in the build log and counted for each node and resource, see {@link AdmissionManagementLink}.
+ */
+public final class NodeAdmission {
+
+    private static final NodeAdmission INSTANCE = new NodeAdmission();
+
+    private static final long MB = 1024 * 1024;
+
+    /**
+     * the bytes an extraction holds at a time.
+     */
+    private static final long EXTRACTION_BLOCK_BYTES = MB;
+
+    private final Map<String, FairLimiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * the owner of the permits the thread holds, the extractions of a download take turns as its build.
+     */
+    private final ThreadLocal<Object> owners = new ThreadLocal<>();
+
+    private NodeAdmission() {
+    }
+
+    public static NodeAdmission get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Wait for the permits of the resource on the node of the workspace.
+     * While the permit is held, the packages the thread extracts take turns as the owner.
+     *
+     * @param owner the permits are shared in turn between owners, the builds
+     * @param log where a wait is told
+     */
+    public Permit acquire(FilePath ws, AdmissionResource resource, Object owner, long amount, PrintStream log)
+            throws InterruptedException {
+        Computer computer = ws.toComputer();
+        FairLimiter limiter = limiterOf(computer, resource);
+        if (limiter == null) {
+            return new Permit(null, 0, owner);
+        }
+
+        long waitedNanos = limiter.acquire(owner, amount);
+        if (waitedNanos > 0 && log != null) {
+            log.printf("--//INFO: waited %d ms for %s of node(%s)%n",
+                    TimeUnit.NANOSECONDS.toMillis(waitedNanos), resource.getDisplayName(), nodeNameOf(computer));
+        }
+        return new Permit(limiter, amount, owner);
+    }
+
+    /**
+     * @return the package stream, holding its bytes of the extraction limit of the node of the step dir
+     * while it is read. The stream takes turns as the owner of the permits of the thread, or on its own.
+     */
+    public InputStream meter(InputStream in, FilePath stepDir) {
+        FairLimiter limiter = limiterOf(stepDir.toComputer(), AdmissionResource.EXTRACTION_BYTES);
+        if (limiter == null) {
+            return in;
+        }
+        return new MeteredInputStream(in, limiter, Math.min(EXTRACTION_BLOCK_BYTES, limiter.getCapacity()),
+                owners.get());
+    }
+
+    /**
+     * @return the use and the waits of each node and resource, by node.
+     */
+    public List<Stats> getStats() {
+        List<Stats> stats = new ArrayList<>();
+        for (Map.Entry<String, FairLimiter> entry : new TreeMap<>(limiters).entrySet()) {
+            stats.add(new Stats(entry.getKey(), entry.getValue()));
+        }
+        return stats;
+    }
+
+    /**
+     * @return the limiter of the resource of the node, {@code null} when the resource is unlimited.
+     */
+    private FairLimiter limiterOf(Computer computer, AdmissionResource resource) {
+        Node node = computer == null ? null : computer.getNode();
+        long capacity = capacityOf(node, resource);
+        if (capacity <= 0) {
+            return null;
+        }
+
+        FairLimiter limiter = limiters.computeIfAbsent(String.format("%s/%s", nodeNameOf(computer),
+                resource.getDisplayName()), key -> new FairLimiter());
+        // the limit may have been changed in the configuration
+        limiter.setCapacity(capacity);
+        return limiter;
+    }
+
+    private static long capacityOf(Node node, AdmissionResource resource) {
+        OesGlobalConfiguration globalConfig = OesGlobalConfiguration.get();
+        AdmissionNodeProperty property = node == null ? null : node.getNodeProperties().get(AdmissionNodeProperty.class);
+
+        Integer limit;
+        switch (resource) {
+            case FORKED_STEPS:
+                limit = property == null ? null : property.getMaxForkedSteps();
+                return limit != null ? limit : globalConfig.getMaxForkedStepsPerNode();
+            case DOWNLOADS:
+                limit = property == null ? null : property.getMaxDownloads();
+                return limit != null ? limit : globalConfig.getMaxDownloadsPerNode();
+            default:
+                limit = property == null ? null : property.getMaxExtractionMb();
+                return (limit != null ? limit : globalConfig.getMaxExtractionMbPerNode()) * MB;
+        }
+    }
+
+    private static String nodeNameOf(Computer computer) {
+        if (computer == null) {
+            return "unknown";
+        }
+        return computer.getName().isEmpty() ? "built-in" : computer.getName();
+    }
+
+    /**
+     * The use and the waits of a resource of a node.
+     */
+    public static final class Stats {
+
+        private final String name;
+
+        private final long capacity;
+
+        private final long used;
+
+        private final long acquiredCount;
+
+        private final long waitedCount;
+
+        private final long waitedMillis;
+
+        Stats(String name, FairLimiter limiter) {
+            this.name = name;
+            this.capacity = limiter.getCapacity();
+            this.used = limiter.getUsed();
+            this.acquiredCount = limiter.getAcquiredCount();
+            this.waitedCount = limiter.getWaitedCount();
+            this.waitedMillis = TimeUnit.NANOSECONDS.toMillis(limiter.getWaitedNanos());
+        }
+
+        /**
+         * @return the node and the resource, such as {@code built-in/downloads}.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getCapacity() {
+            return capacity;
+        }
+
+        public long getUsed() {
+            return used;
+        }
+
+        public long getAcquiredCount() {
+            return acquiredCount;
+        }
+
+        public long getWaitedCount() {
+            return waitedCount;
+        }
+
+        public long getWaitedMillis() {
+            return waitedMillis;
+        }
+    }
+
+    /**
+     * Permits held until closed.
+     */
+    public class Permit implements AutoCloseable {
+
+        private final FairLimiter limiter;
+
+        private final long amount;
+
+        private final Object previousOwner;
+
+        private boolean released;
+
+        Permit(FairLimiter limiter, long amount, Object owner) {
+            this.limiter = limiter;
+            this.amount = amount;
+            this.previousOwner = owners.get();
+            owners.set(owner);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            // closed by the thread which acquired it
+            if (previousOwner == null) {
+                owners.remove();
+            } else {
+                owners.set(previousOwner);
+            }
+            if (limiter != null) {
+                limiter.release(amount);
+            }
+        }
+    }
+
+    /**
+     * Reads the package in blocks, each block holding its bytes of the limit until the next block is read.
+     * A stream holds a block at most, so a stream waiting for the limit holds nothing.
+     */
+    private static final class MeteredInputStream extends FilterInputStream {
+
+        private final FairLimiter limiter;
+
+        private final long blockBytes;
+
+        private final Object owner;
+
+        private long held;
+
+        private long remaining;
+
+        private volatile boolean closed;
+
+        /**
+         * @param owner the build the package is extracted for, {@code null} for a stream taking turns on its own
+         */
+        MeteredInputStream(InputStream in, FairLimiter limiter, long blockBytes, Object owner) {
+            super(in);
+            this.limiter = limiter;
+            this.blockBytes = blockBytes;
+            this.owner = owner == null ? this : owner;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (remaining == 0) {
+                releaseBlock();
+                try {
+                    limiter.acquire(owner, blockBytes);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while waiting for the extraction limit");
+                }
+                held = blockBytes;
+                remaining = blockBytes;
+            }
+
+            int n;
+            try {
+                n = super.read(b, off, (int) Math.min(len, remaining));
+            } catch (IOException e) {
+                releaseBlock();
+                throw e;
+            }
+            if (n == -1 || closed) {
+                releaseBlock();
+            } else {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                releaseBlock();
+            }
+        }
+
+        private synchronized void releaseBlock() {
+            if (held > 0) {
+                limiter.release(held);
+                held = 0;
+            }
+            remaining = 0;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package cn.opsbox.jenkinsci.plugins.oes.ant;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A JVM on a node which keeps the ant of asl loaded and warm, and runs steps sent over a local socket,
+ * like the gradle daemon.
+ *
+ * It listens on the loopback address and writes the port and a token to {@code daemon.properties},
+ * readable by the agent user only. A request carries the token and a command: {@code ping} is answered
+ * with {@code pong}, {@code run} is followed by an {@link AntRequest} and answered with frames of the
+ * output and error of ant, ended by the exit code. Every run has a thread and an ant project of its own,
+ * the thread is interrupted when the client closes the socket before the exit code.
+ * The daemon exits when it had no run for the idle timeout.
+ *
+ * Uses the JDK only, it runs without Jenkins from the classes the plugin copies to the node.
+ */
+public final class AntDaemon {
+
+    public static final String STATE_FILE = "daemon.properties";
+
+    public static final String COMMAND_PING = "ping";
+    public static final String COMMAND_RUN = "run";
+    public static final String COMMAND_STOP = "stop";
+
+    public static final byte FRAME_OUT = 'O';
+    public static final byte FRAME_ERR = 'E';
+    public static final byte FRAME_EXIT = 'X';
+
+    /**
+     * the classes the daemon loads, copied to the node.
+     */
+    static final String[] CLASS_NAMES = {
+            "AntDaemon", "AntDaemon$FrameOutputStream", "AntRequest", "AntProjectRunner", "AntProjectRunner$AntLoader"
+    };
+
+    private final File daemonDir;
+
+    private final long idleTimeoutMillis;
+
+    private final String token;
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final AtomicLong lastUsed = new AtomicLong(System.currentTimeMillis());
+
+    private AntDaemon(File daemonDir, long idleTimeoutMillis) {
+        this.daemonDir = daemonDir;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+
+        byte[] tokenBytes = new byte[32];
+        new SecureRandom().nextBytes(tokenBytes);
+        StringBuilder tokenBuilder = new StringBuilder();
+        for (byte b : tokenBytes) {
+            tokenBuilder.append(String.format("%02x", b));
+        }
+        this.token = tokenBuilder.toString();
+    }
+
+    /**
+     * @param args the daemon dir and the idle timeout in minutes
+     */
+    public static void main(String[] args) throws Exception {
+        new AntDaemon(new File(args[0]), TimeUnit.MINUTES.toMillis(Long.parseLong(args[1]))).serve();
+    }
+
+    private void serve() throws IOException {
+        ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "AntDaemon.run");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            writeState(server.getLocalPort());
+            System.out.printf("ant daemon listening on port %d%n", server.getLocalPort());
+
+            server.setSoTimeout((int) TimeUnit.SECONDS.toMillis(10));
+            while (true) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketTimeoutException e) {
+                    if (running.get() == 0 && System.currentTimeMillis() - lastUsed.get() > idleTimeoutMillis) {
+                        System.out.println("ant daemon is idle, exit");
+                        break;
+                    }
+                    continue;
+                }
+                executor.submit(() -> handle(socket));
+            }
+        } finally {
+            deleteState();
+            executor.shutdownNow();
+        }
+        System.exit(0);
+    }
+
+    private void handle(Socket socket) {
+        try (Socket client = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+
+            if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                    AntRequest.readString(in).getBytes(StandardCharsets.UTF_8))) {
+                System.out.println("request with a wrong token refused");
+                return;
+            }
+
+            String command = AntRequest.readString(in);
+            if (COMMAND_PING.equals(command)) {
+                AntRequest.writeString(out, "pong");
+                out.flush();
+            } else if (COMMAND_STOP.equals(command)) {
+                deleteState();
+                System.exit(0);
+            } else if (COMMAND_RUN.equals(command)) {
+                run(AntRequest.read(in), in, out);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            // an abort coming late doesn't reach the next run of the thread
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * The client sends nothing after the request, it closes the socket when its build is aborted,
+     * then the thread of the run is interrupted.
+     */
+    private void run(AntRequest request, DataInputStream in, DataOutputStream out) throws IOException {
+        running.incrementAndGet();
+        Thread runThread = Thread.currentThread();
+        AtomicBoolean finished = new AtomicBoolean();
+        Thread abortWatcher = new Thread(() -> {
+            try {
+                in.read();
+            } catch (IOException e) {
+                // the socket is closed either way
+            }
+            if (finished.compareAndSet(false, true)) {
+                System.out.println("client of a run went away, interrupt the run");
+                runThread.interrupt();
+            }
+        }, "AntDaemon.abortWatcher");
+        abortWatcher.setDaemon(true);
+        abortWatcher.start();
+
+        try {
+            PrintStream stdout = new PrintStream(new FrameOutputStream(out, FRAME_OUT), true, "UTF-8");
+            PrintStream stderr = new PrintStream(new FrameOutputStream(out, FRAME_ERR), true, "UTF-8");
+
+            int exitCode;
+            try {
+                exitCode = AntProjectRunner.run(request, stdout, stderr);
+            } catch (IOException | RuntimeException | LinkageError e) {
+                e.printStackTrace(stderr);
+                exitCode = 1;
+            }
+            if (!finished.compareAndSet(false, true)) {
+                // aborted, nobody reads the exit code
+                return;
+            }
+
+            synchronized (out) {
+                out.writeByte(FRAME_EXIT);
+                out.writeInt(exitCode);
+                out.flush();
+            }
+        } finally {
+            running.decrementAndGet();
+            lastUsed.set(System.currentTimeMillis());
+        }
+    }
+
+    private void writeState(int port) throws IOException {
+        Properties state = new Properties();
+        state.setProperty("port", String.valueOf(port));
+        state.setProperty("token", token);
+        state.setProperty("pid", ManagementFactory.getRuntimeMXBean().getName());
+
+        File tmp = new File(daemonDir, STATE_FILE + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            // the token is readable by the agent user only
+            tmp.setReadable(false, false);
+            tmp.setReadable(true, true);
+            state.store(out, "ant daemon");
+        }
+        Files.move(tmp.toPath(), new File(daemonDir, STATE_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void deleteState() {
+        // a newer daemon may have replaced the state
+        File stateFile = new File(daemonDir, STATE_FILE);
+        Properties state = new Properties();
+        try (InputStream in = new FileInputStream(stateFile)) {
+            state.load(in);
+            if (token.equals(state.getProperty("token"))) {
+                Files.deleteIfExists(stateFile.toPath());
+            }
+        } catch (IOException e) {
+            // no state to delete
+        }
+    }
+
+    /**
+     * Writes a frame of its type for each write, frames of the output and error of a run don't mix.
+     */
+    static final class FrameOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+
+        private final byte type;
+
+        FrameOutputStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+}
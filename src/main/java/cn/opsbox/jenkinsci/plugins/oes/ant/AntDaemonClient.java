@@ -0,0 +1,290 @@
+package cn.opsbox.jenkinsci.plugins.oes.ant;
+
+import cn.opsbox.jenkinsci.plugins.oes.util.NodeDirs;
+import hudson.FilePath;
+import jenkins.security.MasterToSlaveCallable;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a step by the ant daemon of the node, starting the daemon when it isn't running or doesn't answer.
+ */
+public final class AntDaemonClient extends MasterToSlaveCallable<Integer, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(AntDaemonClient.class.getName());
+
+    public static final String DAEMON_DIR = ".oes/ant-daemon";
+
+    private static final String CLASSES_DIR = "classes";
+
+    private static final String CLASSES_DIGEST_FILE = ".digest";
+
+    /**
+     * a daemon runs for each JDK, its state and log are in a dir named after the JDK.
+     */
+    private static final String JDK_DIR_PREFIX = "jdk-";
+
+    private static final int PING_TIMEOUT_MILLIS = 5000;
+
+    private static final long START_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * how often a run waiting for the output of the daemon checks whether its build is aborted.
+     */
+    private static final int ABORT_CHECK_MILLIS = 1000;
+
+    private static Map<String, byte[]> classFiles;
+
+    private static String classesDigest;
+
+    private final String daemonDir;
+
+    private final long idleMinutes;
+
+    private final String javaHome;
+
+    private final AntRequest request;
+
+    private final OutputStream out;
+
+    /**
+     * @param javaHome the JDK of the step, a daemon runs for each JDK; {@code null} for the JDK of the agent
+     * @param out the build log, a {@code RemoteOutputStream} for other nodes
+     */
+    public AntDaemonClient(String daemonDir, long idleMinutes, String javaHome, AntRequest request, OutputStream out) {
+        this.daemonDir = daemonDir;
+        this.idleMinutes = idleMinutes;
+        this.javaHome = javaHome;
+        this.request = request;
+        this.out = out;
+    }
+
+    /**
+     * The daemon dir of the node of the workspace, with the daemon classes of this plugin version.
+     */
+    public static FilePath install(FilePath ws) throws IOException, InterruptedException {
+        FilePath daemonDir = NodeDirs.of(ws, DAEMON_DIR);
+
+        FilePath classesDir = daemonDir.child(CLASSES_DIR);
+        FilePath digestFile = classesDir.child(CLASSES_DIGEST_FILE);
+        String digest = getClassesDigest();
+        if (digestFile.exists() && digest.equals(digestFile.readToString().trim())) {
+            return daemonDir;
+        }
+
+        String packageDir = AntDaemon.class.getPackage().getName().replace('.', '/');
+        for (Map.Entry<String, byte[]> classFile : getClassFiles().entrySet()) {
+            FilePath target = classesDir.child(packageDir).child(classFile.getKey() + ".class");
+            target.getParent().mkdirs();
+            try (OutputStream classOut = target.write()) {
+                classOut.write(classFile.getValue());
+            }
+        }
+        digestFile.write(digest, "UTF-8");
+
+        // the daemons of an older plugin version are replaced
+        for (FilePath stateFile : daemonDir.list(JDK_DIR_PREFIX + "*/" + AntDaemon.STATE_FILE)) {
+            stateFile.delete();
+        }
+        return daemonDir;
+    }
+
+    @Override
+    public Integer call() throws IOException {
+        File java = getJava();
+        File dir = new File(daemonDir, JDK_DIR_PREFIX + digest(java.getPath().getBytes(StandardCharsets.UTF_8)));
+        Properties state = readState(dir);
+        if (state == null || !ping(state)) {
+            state = start(dir, java);
+        }
+
+        // closing the socket tells the daemon to interrupt the run
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(state.getProperty("port")))) {
+            DataOutputStream requestOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            AntRequest.writeString(requestOut, state.getProperty("token"));
+            AntRequest.writeString(requestOut, AntDaemon.COMMAND_RUN);
+            request.write(requestOut);
+            requestOut.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                byte type;
+                // remoting interrupts this thread when the build is aborted, a socket read doesn't see it
+                socket.setSoTimeout(ABORT_CHECK_MILLIS);
+                try {
+                    type = in.readByte();
+                } catch (SocketTimeoutException e) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedIOException("ant daemon run aborted");
+                    }
+                    continue;
+                }
+                socket.setSoTimeout(0);
+                if (type == AntDaemon.FRAME_EXIT) {
+                    out.flush();
+                    return in.readInt();
+                }
+                byte[] frame = new byte[in.readInt()];
+                in.readFully(frame);
+                // the output and the error of ant go to the build log alike
+                out.write(frame);
+            }
+        }
+    }
+
+    /**
+     * @return the java of the JDK of the step.
+     */
+    private File getJava() {
+        String home = javaHome == null || javaHome.isEmpty() ? System.getProperty("java.home") : javaHome;
+        return new File(new File(home, "bin"), File.pathSeparatorChar == ';' ? "java.exe" : "java");
+    }
+
+    /**
+     * Start a daemon, unless another build started one meanwhile.
+     */
+    private Properties start(File dir, File java) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException(String.format("%s can't be created", dir));
+        }
+        try (FileChannel channel = FileChannel.open(new File(dir, "start.lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+
+            Properties state = readState(dir);
+            if (state != null && ping(state)) {
+                return state;
+            }
+            new File(dir, AntDaemon.STATE_FILE).delete();
+
+            ProcessBuilder builder = new ProcessBuilder(java.getPath(), "-cp",
+                    new File(daemonDir, CLASSES_DIR).getPath(),
+                    AntDaemon.class.getName(), dir.getPath(), String.valueOf(idleMinutes));
+            builder.directory(dir);
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(dir, "daemon.log")));
+            // not a process of the build, the process tree killer leaves it alone
+            builder.environment().put("BUILD_ID", "dontKillMe");
+            builder.environment().put("JENKINS_NODE_COOKIE", "dontKillMe");
+            Process process = builder.start();
+
+            long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+            while (System.currentTimeMillis() < deadline) {
+                state = readState(dir);
+                if (state != null && ping(state)) {
+                    return state;
+                }
+                if (!process.isAlive()) {
+                    throw new IOException(String.format("ant daemon exited with %d, see %s",
+                            process.exitValue(), new File(dir, "daemon.log")));
+                }
+                Thread.sleep(100);
+            }
+            process.destroy();
+            throw new IOException("ant daemon didn't start in time");
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static Properties readState(File dir) {
+        File stateFile = new File(dir, AntDaemon.STATE_FILE);
+        if (!stateFile.isFile()) {
+            return null;
+        }
+        Properties state = new Properties();
+        try (InputStream in = new FileInputStream(stateFile)) {
+            state.load(in);
+            return state;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The health check of the daemon.
+     */
+    private static boolean ping(Properties state) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    Integer.parseInt(state.getProperty("port"))), PING_TIMEOUT_MILLIS);
+            socket.setSoTimeout(PING_TIMEOUT_MILLIS);
+
+            DataOutputStream pingOut = new DataOutputStream(socket.getOutputStream());
+            AntRequest.writeString(pingOut, state.getProperty("token"));
+            AntRequest.writeString(pingOut, AntDaemon.COMMAND_PING);
+            pingOut.flush();
+            return "pong".equals(AntRequest.readString(new DataInputStream(socket.getInputStream())));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "ant daemon doesn't answer", e);
+            return false;
+        }
+    }
+
+    private static synchronized Map<String, byte[]> getClassFiles() throws IOException {
+        if (classFiles == null) {
+            Map<String, byte[]> files = new LinkedHashMap<>();
+            for (String className : AntDaemon.CLASS_NAMES) {
+                try (InputStream in = AntDaemon.class.getResourceAsStream(className + ".class")) {
+                    if (in == null) {
+                        throw new IOException(String.format("class(%s) of the ant daemon is not found", className));
+                    }
+                    files.put(className, IOUtils.toByteArray(in));
+                }
+            }
+            classFiles = files;
+        }
+        return classFiles;
+    }
+
+    private static synchronized String getClassesDigest() throws IOException {
+        if (classesDigest == null) {
+            classesDigest = digest(getClassFiles().values().toArray(new byte[0][]));
+        }
+        return classesDigest;
+    }
+
+    private static String digest(byte[]... values) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (byte[] value : values) {
+                digest.update(value);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package cn.opsbox.jenkinsci.plugins.oes.ant;
+
+/**
+ * How the ant of asl runs a step, set for all steps in the global configuration
+ * or for a step by its {@code ant.mode} property.
+ */
+public enum AntExecMode {
+
+    /**
+     * a {@code tools/ant/bin/ant} process for each step.
+     */
+    FORK("fork", "Ant process for each step"),
+
+    /**
+     * a {@code java} process for each step started without the ant launcher, from a class data sharing archive.
+     */
+    JAVA("java", "Java process for each step, with class data sharing"),
+
+    /**
+     * the ant {@code Project} API in the agent JVM, with a class loader for each asl version.
+     */
+    IN_PROCESS("in-process", "Ant in the agent JVM"),
+
+    /**
+     * a warm ant daemon on each node, which runs the steps of all builds of the node.
+     */
+    DAEMON("daemon", "Ant daemon on each node");
+
+    public static final String PROPERTY = "ant.mode";
+
+    private final String value;
+
+    private final String displayName;
+
+    AntExecMode(String value, String displayName) {
+        this.value = value;
+        this.displayName = displayName;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * @return the mode of the property value, or the default mode when the value is empty or unknown.
+     */
+    public static AntExecMode of(String value, AntExecMode defaultMode) {
+        if (value != null) {
+            for (AntExecMode mode : values()) {
+                if (mode.value.equalsIgnoreCase(value.trim()) || mode.name().equalsIgnoreCase(value.trim())) {
+                    return mode;
+                }
+            }
+        }
+        return defaultMode == null ? FORK : defaultMode;
+    }
+}
@@ -0,0 +1,202 @@
+package cn.opsbox.jenkinsci.plugins.oes.ant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Runs an {@link AntRequest} through the ant {@code Project} API in this JVM.
+ *
+ * Ant is loaded by a class loader of its own for each asl package, apart from the ant of Jenkins,
+ * so it is used by reflection. Loaders no run uses are closed, except the most recently used ones.
+ *
+ * The JVM environment can't be changed, the step environment is given to the script as {@code env.*}
+ * properties, and processes started by the script don't get it.
+ * Uses the JDK only, the ant daemon loads it without Jenkins.
+ */
+final class AntProjectRunner {
+
+    private static final int MSG_INFO = 2;
+
+    /**
+     * {@code PackageExtractor.DIGEST_FILE}, the daemon doesn't load the registry classes.
+     */
+    private static final String DIGEST_FILE = ".package.digest";
+
+    /**
+     * loaders without runs kept for the next runs.
+     */
+    private static final int MAX_IDLE_LOADERS = 2;
+
+    /**
+     * the loaders by the asl version and package digest, shared by the workspaces.
+     */
+    private static final Map<String, AntLoader> LOADERS = new HashMap<>();
+
+    private AntProjectRunner() {
+    }
+
+    /**
+     * @return the exit code of the run, like the one of an ant process.
+     */
+    static int run(AntRequest request, PrintStream out, PrintStream err) throws IOException {
+        AntLoader antLoader = acquireLoader(request.aslRoot, request.aslVersion);
+        ClassLoader loader = antLoader.loader;
+
+        Thread thread = Thread.currentThread();
+        ClassLoader contextLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(loader);
+        try {
+            return run(loader, request, out, err);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException(String.format("ant of asl(%s) can't run in process", request.aslRoot), e);
+        } finally {
+            thread.setContextClassLoader(contextLoader);
+            out.flush();
+            err.flush();
+            releaseLoader(antLoader);
+        }
+    }
+
+    private static int run(ClassLoader loader, AntRequest request, PrintStream out, PrintStream err)
+            throws ReflectiveOperationException, IOException {
+        Class<?> projectClass = loader.loadClass("org.apache.tools.ant.Project");
+        Class<?> buildListenerClass = loader.loadClass("org.apache.tools.ant.BuildListener");
+        Object project = projectClass.getConstructor().newInstance();
+
+        Object logger = loader.loadClass("org.apache.tools.ant.NoBannerLogger").getConstructor().newInstance();
+        logger.getClass().getMethod("setOutputPrintStream", PrintStream.class).invoke(logger, out);
+        logger.getClass().getMethod("setErrorPrintStream", PrintStream.class).invoke(logger, err);
+        logger.getClass().getMethod("setMessageOutputLevel", int.class).invoke(logger, MSG_INFO);
+        projectClass.getMethod("addBuildListener", buildListenerClass).invoke(project, logger);
+
+        Map<String, String> userProperties = new HashMap<>();
+        for (Map.Entry<String, String> entry : request.environment.entrySet()) {
+            // read by <property environment="env"/>, user properties win
+            userProperties.put("env." + entry.getKey(), entry.getValue());
+        }
+        Properties fileProperties = new Properties();
+        try (InputStream in = new FileInputStream(request.propertyFile)) {
+            fileProperties.load(in);
+        }
+        for (String name : fileProperties.stringPropertyNames()) {
+            userProperties.put(name, fileProperties.getProperty(name));
+        }
+        userProperties.putAll(request.properties);
+        userProperties.put("ant.home", new File(request.aslRoot, "tools/ant").getPath());
+        userProperties.put("ant.file", new File(request.buildFile).getAbsolutePath());
+
+        Method setUserProperty = projectClass.getMethod("setUserProperty", String.class, String.class);
+        for (Map.Entry<String, String> entry : userProperties.entrySet()) {
+            setUserProperty.invoke(project, entry.getKey(), entry.getValue());
+        }
+
+        projectClass.getMethod("init").invoke(project);
+        projectClass.getMethod("setBaseDir", File.class).invoke(project, new File(request.baseDir));
+        projectClass.getMethod("fireBuildStarted").invoke(project);
+
+        Throwable failure = null;
+        try {
+            loader.loadClass("org.apache.tools.ant.ProjectHelper")
+                    .getMethod("configureProject", projectClass, File.class)
+                    .invoke(null, project, new File(request.buildFile));
+            String defaultTarget = (String) projectClass.getMethod("getDefaultTarget").invoke(project);
+            projectClass.getMethod("executeTarget", String.class).invoke(project, defaultTarget);
+        } catch (InvocationTargetException e) {
+            failure = e.getCause();
+        }
+
+        // the logger prints the result like the ant process does
+        projectClass.getMethod("fireBuildFinished", Throwable.class).invoke(project, failure);
+        return failure == null ? 0 : 1;
+    }
+
+    /**
+     * @return the class loader of the ant of the asl version and package digest, held by the run until released.
+     */
+    private static synchronized AntLoader acquireLoader(String aslRoot, String aslVersion) throws IOException {
+        File digestFile = new File(aslRoot, DIGEST_FILE);
+        // a package without a digest is told apart by its dir
+        String key = digestFile.isFile()
+                ? aslVersion + "#" + new String(Files.readAllBytes(digestFile.toPath()), StandardCharsets.UTF_8).trim()
+                : aslVersion + "@" + new File(aslRoot).getCanonicalPath();
+
+        AntLoader antLoader = LOADERS.get(key);
+        if (antLoader == null) {
+            antLoader = new AntLoader(key, createLoader(aslRoot));
+            LOADERS.put(key, antLoader);
+        }
+        antLoader.runs++;
+        return antLoader;
+    }
+
+    /**
+     * Close the loaders no run uses, but the most recently used ones.
+     */
+    private static synchronized void releaseLoader(AntLoader antLoader) {
+        antLoader.runs--;
+        antLoader.lastUsed = System.currentTimeMillis();
+
+        List<AntLoader> idle = new ArrayList<>();
+        for (AntLoader loader : LOADERS.values()) {
+            if (loader.runs == 0) {
+                idle.add(loader);
+            }
+        }
+        idle.sort((a, b) -> Long.compare(b.lastUsed, a.lastUsed));
+        for (AntLoader loader : idle.subList(Math.min(MAX_IDLE_LOADERS, idle.size()), idle.size())) {
+            LOADERS.remove(loader.key);
+            try {
+                loader.loader.close();
+            } catch (IOException e) {
+                // the jars are closed by the collector then
+            }
+        }
+    }
+
+    private static URLClassLoader createLoader(String aslRoot) throws IOException {
+        File[] jars = new File(aslRoot, "tools/ant/lib").listFiles((dir, name) -> name.endsWith(".jar"));
+        if (jars == null || jars.length == 0) {
+            throw new IOException(String.format("asl(%s) has no ant libraries", aslRoot));
+        }
+        List<URL> urls = new ArrayList<>();
+        for (File jar : jars) {
+            urls.add(jar.toURI().toURL());
+        }
+
+        // the parent of the system class loader, so the ant of Jenkins or the agent doesn't leak in
+        return new URLClassLoader(urls.toArray(new URL[0]), ClassLoader.getSystemClassLoader().getParent());
+    }
+
+    private static final class AntLoader {
+
+        private final String key;
+
+        private final URLClassLoader loader;
+
+        /**
+         * the runs using the loader.
+         */
+        private int runs;
+
+        private long lastUsed;
+
+        AntLoader(String key, URLClassLoader loader) {
+            this.key = key;
+            this.loader = loader;
+        }
+    }
+}
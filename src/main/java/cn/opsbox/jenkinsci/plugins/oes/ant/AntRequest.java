@@ -0,0 +1,94 @@
+package cn.opsbox.jenkinsci.plugins.oes.ant;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A run of the {@code run.xml} of a step by the ant of asl, without a process of its own.
+ *
+ * Uses the JDK only, the ant daemon loads it without Jenkins.
+ */
+public final class AntRequest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final String aslRoot;
+
+    final String aslVersion;
+
+    final String buildFile;
+
+    final String baseDir;
+
+    final String propertyFile;
+
+    /**
+     * the properties given to ant by {@code -D}.
+     */
+    final Map<String, String> properties;
+
+    final Map<String, String> environment;
+
+    public AntRequest(String aslRoot, String aslVersion, String buildFile, String baseDir, String propertyFile,
+                      Map<String, String> properties, Map<String, String> environment) {
+        this.aslRoot = aslRoot;
+        this.aslVersion = aslVersion;
+        this.buildFile = buildFile;
+        this.baseDir = baseDir;
+        this.propertyFile = propertyFile;
+        this.properties = new HashMap<>(properties);
+        this.environment = environment == null ? new HashMap<>() : new HashMap<>(environment);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        writeString(out, aslRoot);
+        writeString(out, aslVersion);
+        writeString(out, buildFile);
+        writeString(out, baseDir);
+        writeString(out, propertyFile);
+        writeMap(out, properties);
+        writeMap(out, environment);
+    }
+
+    static AntRequest read(DataInputStream in) throws IOException {
+        return new AntRequest(readString(in), readString(in), readString(in), readString(in), readString(in),
+                readMap(in), readMap(in));
+    }
+
+    /**
+     * unlike {@code writeUTF}, values such as certificates in the environment may be longer than 64k.
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in), readString(in));
+        }
+        return map;
+    }
+}
@@ -0,0 +1,39 @@
+package cn.opsbox.jenkinsci.plugins.oes.ant;
+
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Runs the {@code run.xml} of a step with the ant of asl inside the JVM of the node, instead of
+ * starting an ant process for each step.
+ *
+ * Processes started by the script don't get the step environment, such steps keep running in a forked ant.
+ */
+public final class InProcessAnt extends MasterToSlaveCallable<Integer, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final AntRequest request;
+
+    private final OutputStream out;
+
+    private final String charsetName;
+
+    /**
+     * @param out the build log, a {@code RemoteOutputStream} for other nodes
+     */
+    public InProcessAnt(AntRequest request, OutputStream out, String charsetName) {
+        this.request = request;
+        this.out = out;
+        this.charsetName = charsetName;
+    }
+
+    @Override
+    public Integer call() throws IOException {
+        PrintStream log = new PrintStream(out, true, charsetName);
+        return AntProjectRunner.run(request, log, log);
+    }
+}
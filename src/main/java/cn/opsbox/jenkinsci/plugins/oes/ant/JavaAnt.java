@@ -0,0 +1,278 @@
+package cn.opsbox.jenkinsci.plugins.oes.ant;
+
+import cn.opsbox.jenkinsci.plugins.oes.registry.PackageExtractor;
+import cn.opsbox.jenkinsci.plugins.oes.util.NodeDirs;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * The {@code java} command of the ant of asl, without the shell launcher of {@code tools/ant/bin/ant}
+ * and the processes it forks. Like the shell launcher it starts the ant {@code Launcher}, which adds
+ * {@code tools.jar}, {@code ~/.ant/lib} and the ant libraries, with {@code ANT_ARGS} and {@code CLASSPATH}.
+ *
+ * On JDK 13 and later the classes loaded by a step are kept in a class data sharing archive for each
+ * asl package and JDK of a node: the first step writes it at exit, the next steps start from it.
+ * Older JDKs get no archive, their static archives don't take the classes of the ant class loader.
+ */
+public final class JavaAnt implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String CDS_DIR = ".oes/cds";
+
+    /**
+     * {@code -XX:ArchiveClassesAtExit} came with JDK 13.
+     */
+    private static final int DYNAMIC_ARCHIVE_JAVA_VERSION = 13;
+
+    private final String javaPath;
+
+    private final String launcherJar;
+
+    private final String antHome;
+
+    private final int javaVersion;
+
+    private final String archive;
+
+    private final boolean archiveExists;
+
+    /**
+     * unique, steps of other builds may write the archive at the same time.
+     */
+    private final String dumpArchive;
+
+    private JavaAnt(String javaPath, String launcherJar, String antHome, int javaVersion,
+                    String archive, boolean archiveExists) {
+        this.javaPath = javaPath;
+        this.launcherJar = launcherJar;
+        this.antHome = antHome;
+        this.javaVersion = javaVersion;
+        this.archive = archive;
+        this.archiveExists = archiveExists;
+        this.dumpArchive = String.format("%s.%s.tmp", archive, UUID.randomUUID());
+    }
+
+    /**
+     * Look up the java of {@code JAVA_HOME}, or the java of the agent, and the ant libraries of asl on the node.
+     */
+    public static JavaAnt probe(FilePath ws, FilePath aslDir, String aslVersion, Map<String, String> envvars)
+            throws IOException, InterruptedException {
+        FilePath cdsDir = NodeDirs.of(ws, CDS_DIR);
+        return aslDir.act(new Probe(aslVersion, Util.fixEmptyAndTrim(envvars.get("JAVA_HOME")),
+                Util.fixEmptyAndTrim(envvars.get("CLASSPATH")), cdsDir.getRemote()));
+    }
+
+    /**
+     * @return {@code java <options> org.apache.tools.ant.launch.Launcher <ANT_ARGS>}, the ant options follow.
+     */
+    public ArgumentListBuilder command(Map<String, String> envvars) {
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(javaPath);
+        String antOpts = Util.fixEmptyAndTrim(envvars.get("ANT_OPTS"));
+        if (antOpts != null) {
+            args.addTokenized(antOpts);
+        }
+
+        if (isDumping()) {
+            args.add(String.format("-XX:ArchiveClassesAtExit=%s", dumpArchive));
+        } else if (archiveExists) {
+            // a stale archive is ignored by the JVM
+            args.add(String.format("-XX:SharedArchiveFile=%s", archive));
+            args.add("-Xshare:auto");
+        }
+        if (javaVersion >= DYNAMIC_ARCHIVE_JAVA_VERSION) {
+            args.add("-Xlog:cds=off", "-Xlog:cds+dynamic=off");
+        }
+
+        args.add(String.format("-Dant.home=%s", antHome));
+        args.add(String.format("-Dant.library.dir=%s", new File(antHome, "lib").getPath()));
+        args.add("-cp", launcherJar);
+        args.add("org.apache.tools.ant.launch.Launcher");
+
+        String antArgs = Util.fixEmptyAndTrim(envvars.get("ANT_ARGS"));
+        if (antArgs != null) {
+            args.addTokenized(antArgs);
+        }
+        String classpath = Util.fixEmptyAndTrim(envvars.get("CLASSPATH"));
+        if (classpath != null) {
+            args.add("-cp", classpath);
+        }
+        return args;
+    }
+
+    /**
+     * Keep the archive written by the step, when the step succeeded. The step never fails for the archive.
+     */
+    public void finish(VirtualChannel channel, boolean success, PrintStream logger) throws InterruptedException {
+        if (!isDumping()) {
+            return;
+        }
+
+        try {
+            new FilePath(channel, dumpArchive).act(new KeepArchive(archive, success));
+        } catch (IOException e) {
+            logger.printf("--//WARN: keep class data sharing archive failed: %s%n", e.getMessage());
+        }
+    }
+
+    private boolean isDumping() {
+        return !archiveExists && javaVersion >= DYNAMIC_ARCHIVE_JAVA_VERSION;
+    }
+
+    /**
+     * Moves the dumped archive over the archive, another step may have written it meanwhile.
+     */
+    private static final class KeepArchive extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String archive;
+
+        private final boolean success;
+
+        KeepArchive(String archive, boolean success) {
+            this.archive = archive;
+            this.success = success;
+        }
+
+        @Override
+        public Void invoke(File dumped, VirtualChannel channel) throws IOException {
+            if (!success || !dumped.isFile()) {
+                Files.deleteIfExists(dumped.toPath());
+                return null;
+            }
+            try {
+                Files.move(dumped.toPath(), new File(archive).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(dumped.toPath());
+            }
+            return null;
+        }
+    }
+
+    private static final class Probe extends MasterToSlaveFileCallable<JavaAnt> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String aslVersion;
+
+        private final String javaHome;
+
+        private final String cdsDir;
+
+        private final String classpath;
+
+        Probe(String aslVersion, String javaHome, String classpath, String cdsDir) {
+            this.aslVersion = aslVersion;
+            this.javaHome = javaHome;
+            this.classpath = classpath;
+            this.cdsDir = cdsDir;
+        }
+
+        @Override
+        public JavaAnt invoke(File aslDir, VirtualChannel channel) throws IOException {
+            // the store entry or the package dir the step dir links to, the same for every workspace using it
+            File antHome = aslDir.toPath().toRealPath().resolve("tools/ant").toFile();
+            File launcherJar = new File(antHome, "lib/ant-launcher.jar");
+            File[] jars = new File(antHome, "lib").listFiles((dir, name) -> name.endsWith(".jar"));
+            if (jars == null || !launcherJar.isFile()) {
+                throw new IOException(String.format("asl(%s) has no ant launcher", aslDir));
+            }
+            // the classes in an archive must come from the same jars for every step
+            Arrays.sort(jars);
+            List<String> jarPaths = new ArrayList<>();
+            for (File jar : jars) {
+                jarPaths.add(jar.getPath());
+            }
+
+            String home = javaHome == null ? System.getProperty("java.home") : javaHome;
+            boolean windows = File.pathSeparatorChar == ';';
+            String javaPath = new File(new File(home, "bin"), windows ? "java.exe" : "java").getPath();
+            int javaVersion = javaHome == null
+                    ? parseJavaVersion(System.getProperty("java.specification.version"))
+                    : readJavaVersion(new File(javaHome));
+
+            File digestFile = new File(aslDir, PackageExtractor.DIGEST_FILE);
+            String aslDigest = digestFile.isFile()
+                    ? new String(Files.readAllBytes(digestFile.toPath()), StandardCharsets.UTF_8).trim() : "";
+
+            File userLib = new File(System.getProperty("user.home"), ".ant/lib");
+            File archive = new File(cdsDir, String.format("asl-%s-jdk%d.jsa",
+                    sha256(aslVersion, aslDigest, new File(home).getCanonicalPath(),
+                            String.join(File.pathSeparator, jarPaths), String.valueOf(classpath),
+                            String.valueOf(userLib.lastModified())), javaVersion));
+            if (javaVersion >= DYNAMIC_ARCHIVE_JAVA_VERSION) {
+                Files.createDirectories(archive.getParentFile().toPath());
+            }
+
+            return new JavaAnt(javaPath, launcherJar.getPath(), antHome.getPath(),
+                    javaVersion, archive.getPath(), archive.isFile());
+        }
+
+        /**
+         * @return the feature version from the {@code release} file of the JDK, 0 when it's unknown.
+         */
+        private static int readJavaVersion(File javaHome) {
+            Properties release = new Properties();
+            try (InputStream in = new FileInputStream(new File(javaHome, "release"))) {
+                release.load(in);
+            } catch (IOException e) {
+                return 0;
+            }
+            return parseJavaVersion(release.getProperty("JAVA_VERSION", "").replace("\"", ""));
+        }
+
+        /**
+         * 1.8.0_292 is 8, 17.0.2 is 17.
+         */
+        private static int parseJavaVersion(String version) {
+            String[] parts = version.split("[._+-]");
+            try {
+                int feature = Integer.parseInt(parts[0]);
+                return feature == 1 && parts.length > 1 ? Integer.parseInt(parts[1]) : feature;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        private static String sha256(String... values) throws IOException {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                for (String value : values) {
+                    digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) 0);
+                }
+                StringBuilder hex = new StringBuilder();
+                for (byte b : digest.digest()) {
+                    hex.append(String.format("%02x", b));
+                }
+                return hex.substring(0, 16);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
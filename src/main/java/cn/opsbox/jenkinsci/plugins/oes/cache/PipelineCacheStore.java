@@ -0,0 +1,451 @@
+package cn.opsbox.jenkinsci.plugins.oes.cache;
+
+import cn.opsbox.jenkinsci.plugins.oes.pipeline.Cache;
+import cn.opsbox.jenkinsci.plugins.oes.util.NodeDirs;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The caches of the {@code cache} section of pipelines, kept in {@code .oes/pipeline-cache} of the agent root.
+ *
+ * A key is saved as a full snapshot, {@code base.tar.gz}, followed by delta snapshots holding the files
+ * changed since the snapshot before and the list of files deleted, so a build which changed a few
+ * dependencies writes only those. The deltas are compacted into a new full snapshot once there are
+ * {@link #MAX_DELTAS} of them or they got bigger than the full snapshot. Keys used least recently are
+ * removed when the caches of the node exceed their size.
+ */
+public final class PipelineCacheStore {
+
+    public static final String CACHE_DIR = ".oes/pipeline-cache";
+
+    static final int MAX_DELTAS = 8;
+
+    private static final String BASE_FILE = "base.tar.gz";
+    private static final String DELTA_PREFIX = "delta-";
+    private static final String DELTA_EXTENSION = ".tar.gz";
+    private static final String DELETED_EXTENSION = ".deleted";
+    private static final String MANIFEST_FILE = "manifest.properties";
+    private static final String USED_FILE = ".used";
+    private static final String LOCK_FILE = ".lock";
+
+    private static final int MAX_KEY_LENGTH = 100;
+
+    private final FilePath ws;
+
+    private final FilePath storeDir;
+
+    public PipelineCacheStore(FilePath ws) {
+        this.ws = ws;
+        this.storeDir = NodeDirs.of(ws, CACHE_DIR);
+    }
+
+    /**
+     * @return the key template expanded by the environment, followed by the hash of the cache files.
+     */
+    public String keyOf(Cache cache, Map<String, String> envvars) throws IOException, InterruptedException {
+        String key = Util.replaceMacro(cache.getKey(), envvars);
+        if (!cache.getFiles().isEmpty()) {
+            key = String.format("%s-%s", key, ws.act(new FilesHash(cache.getFiles())));
+        }
+
+        key = key.replaceAll("[^A-Za-z0-9._-]", "_");
+        if (key.length() > MAX_KEY_LENGTH) {
+            key = key.substring(0, MAX_KEY_LENGTH - 17) + "-" + sha256(key).substring(0, 16);
+        }
+        return key;
+    }
+
+    /**
+     * @return what was restored into the workspace, or {@code null} when the key has no snapshot.
+     */
+    public String restore(String key) throws IOException, InterruptedException {
+        return ws.act(new Restore(storeDir.getRemote(), key));
+    }
+
+    /**
+     * Save the paths of the workspace under the key, then remove the keys used least recently above the size.
+     *
+     * @return what was saved.
+     */
+    public String save(String key, List<String> paths, long maxSizeBytes) throws IOException, InterruptedException {
+        return ws.act(new Save(storeDir.getRemote(), key, paths, maxSizeBytes));
+    }
+
+    static String sha256(String value) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static FileChannel openLock(File keyDir) throws IOException {
+        Files.createDirectories(keyDir.toPath());
+        return FileChannel.open(new File(keyDir, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    private static void touch(File keyDir) throws IOException {
+        Files.write(new File(keyDir, USED_FILE).toPath(), new byte[0]);
+    }
+
+    /**
+     * @return the delta snapshots of the key in their order.
+     */
+    private static List<File> listDeltas(File keyDir) {
+        File[] deltas = keyDir.listFiles((dir, name) -> name.startsWith(DELTA_PREFIX) && name.endsWith(DELTA_EXTENSION));
+        if (deltas == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(deltas);
+        return new ArrayList<>(Arrays.asList(deltas));
+    }
+
+    private static File deletedFileOf(File delta) {
+        String name = delta.getName();
+        return new File(delta.getParentFile(), name.substring(0, name.length() - DELTA_EXTENSION.length()) + DELETED_EXTENSION);
+    }
+
+    private static final class FilesHash extends MasterToSlaveFileCallable<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> files;
+
+        FilesHash(List<String> files) {
+            this.files = new ArrayList<>(files);
+        }
+
+        @Override
+        public String invoke(File ws, VirtualChannel channel) throws IOException {
+            String[] included = Util.createFileSet(ws, String.join(",", files)).getDirectoryScanner().getIncludedFiles();
+            Arrays.sort(included);
+
+            MessageDigest digest = newDigest();
+            byte[] buffer = new byte[8192];
+            for (String file : included) {
+                digest.update(file.replace('\\', '/').getBytes(StandardCharsets.UTF_8));
+                try (InputStream in = new FileInputStream(new File(ws, file))) {
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        digest.update(buffer, 0, n);
+                    }
+                }
+            }
+            return toHex(digest.digest()).substring(0, 16);
+        }
+    }
+
+    private static final class Restore extends MasterToSlaveFileCallable<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String storeDir;
+
+        private final String key;
+
+        Restore(String storeDir, String key) {
+            this.storeDir = storeDir;
+            this.key = key;
+        }
+
+        @Override
+        public String invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            File keyDir = new File(storeDir, key);
+            if (!new File(keyDir, BASE_FILE).isFile()) {
+                return null;
+            }
+
+            try (FileChannel lockChannel = openLock(keyDir); FileLock ignored = lockChannel.lock()) {
+                File base = new File(keyDir, BASE_FILE);
+                if (!base.isFile()) {
+                    return null;
+                }
+                touch(keyDir);
+
+                FilePath target = new FilePath(ws);
+                new FilePath(base).untar(target, FilePath.TarCompression.GZIP);
+
+                List<File> deltas = listDeltas(keyDir);
+                for (File delta : deltas) {
+                    File deletedFile = deletedFileOf(delta);
+                    if (deletedFile.isFile()) {
+                        for (String deleted : Files.readAllLines(deletedFile.toPath(), StandardCharsets.UTF_8)) {
+                            Path path = ws.toPath().resolve(deleted).normalize();
+                            // never outside the workspace
+                            if (!deleted.isEmpty() && path.startsWith(ws.toPath())) {
+                                Files.deleteIfExists(path);
+                            }
+                        }
+                    }
+                    new FilePath(delta).untar(target, FilePath.TarCompression.GZIP);
+                }
+                return String.format("full snapshot and %d delta snapshots", deltas.size());
+            }
+        }
+    }
+
+    private static final class Save extends MasterToSlaveFileCallable<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String storeDir;
+
+        private final String key;
+
+        private final List<String> paths;
+
+        private final long maxSizeBytes;
+
+        Save(String storeDir, String key, List<String> paths, long maxSizeBytes) {
+            this.storeDir = storeDir;
+            this.key = key;
+            this.paths = new ArrayList<>(paths);
+            this.maxSizeBytes = maxSizeBytes;
+        }
+
+        @Override
+        public String invoke(File ws, VirtualChannel channel) throws IOException {
+            File keyDir = new File(storeDir, key);
+            String result;
+
+            try (FileChannel lockChannel = openLock(keyDir); FileLock ignored = lockChannel.lock()) {
+                touch(keyDir);
+                result = snapshot(ws, keyDir);
+            }
+
+            if (maxSizeBytes > 0) {
+                evict(new File(storeDir), keyDir, maxSizeBytes);
+            }
+            return result;
+        }
+
+        private String snapshot(File ws, File keyDir) throws IOException {
+            Map<String, String> current = scan(ws);
+            Map<String, String> previous = readManifest(keyDir);
+            File base = new File(keyDir, BASE_FILE);
+            List<File> deltas = listDeltas(keyDir);
+
+            if (previous != null && base.isFile() && previous.equals(current)) {
+                return "unchanged";
+            }
+
+            long deltasSize = 0;
+            for (File delta : deltas) {
+                deltasSize += delta.length();
+            }
+
+            String result;
+            if (previous == null || !base.isFile() || deltas.size() >= MAX_DELTAS || deltasSize > base.length()) {
+                writeTar(ws, current.keySet(), base);
+                for (File delta : deltas) {
+                    Files.deleteIfExists(delta.toPath());
+                    Files.deleteIfExists(deletedFileOf(delta).toPath());
+                }
+                result = String.format("full snapshot of %d files", current.size());
+            } else {
+                List<String> changed = new ArrayList<>();
+                for (Map.Entry<String, String> entry : current.entrySet()) {
+                    if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+                        changed.add(entry.getKey());
+                    }
+                }
+                List<String> deleted = new ArrayList<>();
+                for (String path : previous.keySet()) {
+                    if (!current.containsKey(path)) {
+                        deleted.add(path);
+                    }
+                }
+
+                File delta = new File(keyDir, String.format("%s%04d%s", DELTA_PREFIX, deltas.size() + 1, DELTA_EXTENSION));
+                Files.write(deletedFileOf(delta).toPath(), deleted, StandardCharsets.UTF_8);
+                writeTar(ws, changed, delta);
+                result = String.format("delta snapshot %d, %d files changed and %d deleted",
+                        deltas.size() + 1, changed.size(), deleted.size());
+            }
+
+            // written last, the snapshots are complete when it tells their state
+            writeManifest(keyDir, current);
+            return result;
+        }
+
+        /**
+         * @return the files of the paths with their size, time and mode, or the target of links.
+         */
+        private Map<String, String> scan(File ws) throws IOException {
+            Path root = ws.toPath();
+            Map<String, String> files = new TreeMap<>();
+            for (String cachePath : paths) {
+                Path start = root.resolve(cachePath).normalize();
+                if (!start.startsWith(root) || !Files.exists(start, LinkOption.NOFOLLOW_LINKS)) {
+                    continue;
+                }
+                Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        String relative = root.relativize(file).toString().replace('\\', '/');
+                        if (attrs.isSymbolicLink()) {
+                            files.put(relative, "link:" + Files.readSymbolicLink(file));
+                        } else if (attrs.isRegularFile()) {
+                            files.put(relative, String.format("%d:%d:%s", attrs.size(),
+                                    attrs.lastModifiedTime().toMillis(), file.toFile().canExecute() ? "x" : "-"));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+            return files;
+        }
+
+        private void writeTar(File ws, Collection<String> files, File target) throws IOException {
+            File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+            try (TarArchiveOutputStream tar = new TarArchiveOutputStream(
+                    new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))) {
+                tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+                tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+                for (String relative : files) {
+                    Path file = ws.toPath().resolve(relative);
+                    if (Files.isSymbolicLink(file)) {
+                        TarArchiveEntry entry = new TarArchiveEntry(relative, TarConstants.LF_SYMLINK);
+                        entry.setLinkName(Files.readSymbolicLink(file).toString());
+                        tar.putArchiveEntry(entry);
+                        tar.closeArchiveEntry();
+                    } else if (Files.isRegularFile(file)) {
+                        TarArchiveEntry entry = new TarArchiveEntry(file.toFile(), relative);
+                        entry.setMode(file.toFile().canExecute() ? 0100755 : 0100644);
+                        tar.putArchiveEntry(entry);
+                        Files.copy(file, tar);
+                        tar.closeArchiveEntry();
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        private Map<String, String> readManifest(File keyDir) throws IOException {
+            File manifestFile = new File(keyDir, MANIFEST_FILE);
+            if (!manifestFile.isFile()) {
+                return null;
+            }
+            Properties manifest = new Properties();
+            try (InputStream in = new FileInputStream(manifestFile)) {
+                manifest.load(in);
+            }
+            Map<String, String> files = new TreeMap<>();
+            for (String name : manifest.stringPropertyNames()) {
+                files.put(name, manifest.getProperty(name));
+            }
+            return files;
+        }
+
+        private void writeManifest(File keyDir, Map<String, String> files) throws IOException {
+            Properties manifest = new Properties();
+            manifest.putAll(files);
+            File tmp = new File(keyDir, MANIFEST_FILE + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                manifest.store(out, "files of the snapshots");
+            }
+            Files.move(tmp.toPath(), new File(keyDir, MANIFEST_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * Remove the keys used least recently until the caches fit the size, keys in use are left.
+         */
+        private static void evict(File storeDir, File currentKeyDir, long maxSizeBytes) throws IOException {
+            File[] keyDirs = storeDir.listFiles(File::isDirectory);
+            if (keyDirs == null) {
+                return;
+            }
+
+            long total = 0;
+            Map<File, Long> sizes = new TreeMap<>();
+            for (File keyDir : keyDirs) {
+                long size = sizeOf(keyDir);
+                sizes.put(keyDir, size);
+                total += size;
+            }
+
+            Arrays.sort(keyDirs, Comparator.comparingLong(keyDir -> new File(keyDir, USED_FILE).lastModified()));
+            for (File keyDir : keyDirs) {
+                if (total <= maxSizeBytes) {
+                    break;
+                }
+                if (keyDir.equals(currentKeyDir)) {
+                    continue;
+                }
+                try (FileChannel lockChannel = openLock(keyDir); FileLock lock = lockChannel.tryLock()) {
+                    if (lock == null) {
+                        continue;
+                    }
+                    File[] files = keyDir.listFiles((dir, name) -> !name.equals(LOCK_FILE));
+                    for (File file : files == null ? new File[0] : files) {
+                        Util.deleteRecursive(file);
+                    }
+                }
+                Files.deleteIfExists(new File(keyDir, LOCK_FILE).toPath());
+                Files.deleteIfExists(keyDir.toPath());
+                total -= sizes.get(keyDir);
+            }
+        }
+
+        private static long sizeOf(File keyDir) {
+            long size = 0;
+            File[] files = keyDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    size += file.length();
+                }
+            }
+            return size;
+        }
+    }
+}
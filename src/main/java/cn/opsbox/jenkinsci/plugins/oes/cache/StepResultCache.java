@@ -0,0 +1,384 @@
+package cn.opsbox.jenkinsci.plugins.oes.cache;
+
+import cn.opsbox.jenkinsci.plugins.oes.registry.PackageExtractor;
+import cn.opsbox.jenkinsci.plugins.oes.util.NodeDirs;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import hudson.util.io.ArchiverFactory;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * The outputs of a step kept by the hash of its inputs, so a step with the same inputs restores them
+ * instead of running ant again.
+ *
+ * A step takes part by its {@code cache.outputs} property, and {@code cache.inputs} for the files it reads,
+ * both ant patterns relative to the workspace. The key is the sha256 of the step id, the versions and digests
+ * of the step and asl packages, the environment of the stage, the expanded step properties and the paths and
+ * contents of the input files. Results are kept in {@code .oes/step-cache} of the agent root, the least recently
+ * used removed above a size, and in a http cache when one is configured: {@code GET} and {@code PUT} of
+ * {@code <url>/<key>.tar.gz}.
+ */
+public final class StepResultCache {
+
+    public static final String PROPERTY_INPUTS = "cache.inputs";
+    public static final String PROPERTY_OUTPUTS = "cache.outputs";
+
+    public static final String CACHE_DIR = ".oes/step-cache";
+
+    private static final String ENTRY_EXTENSION = ".tar.gz";
+
+    private final FilePath ws;
+
+    private final FilePath storeDir;
+
+    private final String url;
+
+    private final int timeoutMillis;
+
+    private final String key;
+
+    private final String outputs;
+
+    private final long maxSizeBytes;
+
+    private StepResultCache(FilePath ws, FilePath storeDir, String url, int timeoutMillis, String key, String outputs,
+                            long maxSizeBytes) {
+        this.ws = ws;
+        this.storeDir = storeDir;
+        this.url = url;
+        this.timeoutMillis = timeoutMillis;
+        this.key = key;
+        this.outputs = outputs;
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * @param stepVersion the installed version of the step, the package digest may be unknown
+     * @param environment the environment of the stage, secrets are given by their references only
+     * @param url the http cache, {@code null} for the store of the node only
+     * @param maxSizeBytes the size of the store of the node, 0 is unlimited
+     * @return the cache of the step, or {@code null} when the step has no {@code cache.outputs}.
+     */
+    public static StepResultCache of(FilePath ws, String stepId, String stepVersion, String aslVersion,
+                                     FilePath stepDir, FilePath aslDir, Map<String, String> environment,
+                                     Properties stepProps, String url, int timeoutMillis, long maxSizeBytes)
+            throws IOException, InterruptedException {
+        String outputs = Util.fixEmptyAndTrim(stepProps.getProperty(PROPERTY_OUTPUTS));
+        if (outputs == null) {
+            return null;
+        }
+
+        Map<String, String> properties = new TreeMap<>();
+        for (String name : stepProps.stringPropertyNames()) {
+            properties.put(name, stepProps.getProperty(name));
+        }
+        List<String> versions = Arrays.asList(stepId, String.valueOf(stepVersion), String.valueOf(aslVersion));
+        String key = ws.act(new Key(versions, stepDir.getRemote(), aslDir.getRemote(), new TreeMap<>(environment),
+                properties, Util.fixEmptyAndTrim(stepProps.getProperty(PROPERTY_INPUTS))));
+
+        return new StepResultCache(ws, NodeDirs.of(ws, CACHE_DIR), Util.fixEmptyAndTrim(url),
+                timeoutMillis, key, outputs, maxSizeBytes);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Restore the outputs of the key into the workspace.
+     *
+     * @return where the outputs came from, {@code local} or {@code remote}, or {@code null} on a miss.
+     */
+    public String restore() throws IOException, InterruptedException {
+        return ws.act(new Restore(storeDir.getRemote(), url, timeoutMillis, key));
+    }
+
+    /**
+     * Keep the outputs of the step which ran, on the node and in the http cache.
+     */
+    public void save() throws IOException, InterruptedException {
+        ws.act(new Save(storeDir.getRemote(), url, timeoutMillis, key, outputs, maxSizeBytes));
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static HttpURLConnection open(String url, String key, String method, int timeoutMillis) throws IOException {
+        String base = url.endsWith("/") ? url : url + "/";
+        HttpURLConnection connection = (HttpURLConnection) new URL(base + key + ENTRY_EXTENSION).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        return connection;
+    }
+
+    private static final class Key extends MasterToSlaveFileCallable<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * the step id and the versions of the step and asl.
+         */
+        private final List<String> versions;
+
+        private final String stepDir;
+
+        private final String aslDir;
+
+        private final Map<String, String> environment;
+
+        private final Map<String, String> properties;
+
+        private final String inputs;
+
+        Key(List<String> versions, String stepDir, String aslDir, Map<String, String> environment,
+            Map<String, String> properties, String inputs) {
+            this.versions = versions;
+            this.stepDir = stepDir;
+            this.aslDir = aslDir;
+            this.environment = environment;
+            this.properties = properties;
+            this.inputs = inputs;
+        }
+
+        @Override
+        public String invoke(File ws, VirtualChannel channel) throws IOException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+
+            for (String version : versions) {
+                update(digest, version);
+            }
+            update(digest, readDigest(stepDir));
+            update(digest, readDigest(aslDir));
+            for (Map.Entry<String, String> variable : environment.entrySet()) {
+                update(digest, variable.getKey());
+                update(digest, String.valueOf(variable.getValue()));
+            }
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                update(digest, property.getKey());
+                update(digest, property.getValue());
+            }
+
+            if (inputs != null) {
+                String[] files = Util.createFileSet(ws, inputs).getDirectoryScanner().getIncludedFiles();
+                Arrays.sort(files);
+                byte[] buffer = new byte[8192];
+                for (String file : files) {
+                    update(digest, file.replace('\\', '/'));
+                    try (InputStream in = new FileInputStream(new File(ws, file))) {
+                        int n;
+                        while ((n = in.read(buffer)) != -1) {
+                            digest.update(buffer, 0, n);
+                        }
+                    }
+                }
+            }
+            return toHex(digest.digest());
+        }
+
+        private static String readDigest(String dir) throws IOException {
+            File digestFile = new File(dir, PackageExtractor.DIGEST_FILE);
+            return digestFile.isFile()
+                    ? new String(Files.readAllBytes(digestFile.toPath()), StandardCharsets.UTF_8).trim() : "";
+        }
+
+        private static void update(MessageDigest digest, String value) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+    }
+
+    private static final class Restore extends MasterToSlaveFileCallable<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String storeDir;
+
+        private final String url;
+
+        private final int timeoutMillis;
+
+        private final String key;
+
+        Restore(String storeDir, String url, int timeoutMillis, String key) {
+            this.storeDir = storeDir;
+            this.url = url;
+            this.timeoutMillis = timeoutMillis;
+            this.key = key;
+        }
+
+        @Override
+        public String invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            File entry = new File(storeDir, key + ENTRY_EXTENSION);
+            String from = null;
+            if (entry.isFile()) {
+                from = "local";
+            } else if (url != null && download(entry)) {
+                from = "remote";
+            }
+
+            if (from != null) {
+                // the last use, the least recently used entries are evicted
+                entry.setLastModified(System.currentTimeMillis());
+                new FilePath(entry).untar(new FilePath(ws), FilePath.TarCompression.GZIP);
+            }
+            return from;
+        }
+
+        private boolean download(File entry) throws IOException {
+            HttpURLConnection connection = open(url, key, "GET", timeoutMillis);
+            try {
+                int status = connection.getResponseCode();
+                if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                    return false;
+                }
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw new IOException(String.format("get %s from the step cache failed: %d", key, status));
+                }
+
+                Files.createDirectories(entry.getParentFile().toPath());
+                File tmp = new File(entry.getParentFile(), String.format(".%s.%s", entry.getName(), UUID.randomUUID()));
+                try (InputStream in = connection.getInputStream()) {
+                    Files.copy(in, tmp.toPath());
+                    Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    Files.deleteIfExists(tmp.toPath());
+                }
+                return true;
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static final class Save extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String storeDir;
+
+        private final String url;
+
+        private final int timeoutMillis;
+
+        private final String key;
+
+        private final String outputs;
+
+        private final long maxSizeBytes;
+
+        Save(String storeDir, String url, int timeoutMillis, String key, String outputs, long maxSizeBytes) {
+            this.storeDir = storeDir;
+            this.url = url;
+            this.timeoutMillis = timeoutMillis;
+            this.key = key;
+            this.outputs = outputs;
+            this.maxSizeBytes = maxSizeBytes;
+        }
+
+        @Override
+        public Void invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            File entry = new File(storeDir, key + ENTRY_EXTENSION);
+            Files.createDirectories(entry.getParentFile().toPath());
+
+            // steps of other builds may save the same key
+            File tmp = new File(entry.getParentFile(), String.format(".%s.%s", entry.getName(), UUID.randomUUID()));
+            try {
+                try (OutputStream out = new FileOutputStream(tmp)) {
+                    new FilePath(ws).archive(ArchiverFactory.TARGZ, out, outputs);
+                }
+                Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+            if (maxSizeBytes > 0) {
+                evict(entry);
+            }
+
+            if (url != null) {
+                upload(entry);
+            }
+            return null;
+        }
+
+        /**
+         * Delete the entries used least recently until the store is no bigger than the max size.
+         */
+        private void evict(File current) {
+            File[] entries = current.getParentFile().listFiles((dir, name) ->
+                    name.endsWith(ENTRY_EXTENSION) && !name.startsWith("."));
+            if (entries == null) {
+                return;
+            }
+
+            long total = 0;
+            for (File entry : entries) {
+                total += entry.length();
+            }
+            Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+            for (File entry : entries) {
+                if (total <= maxSizeBytes) {
+                    break;
+                }
+                if (entry.equals(current)) {
+                    continue;
+                }
+                long size = entry.length();
+                // a step restoring the entry meanwhile has opened it already or misses
+                if (entry.delete()) {
+                    total -= size;
+                }
+            }
+        }
+
+        private void upload(File entry) throws IOException {
+            HttpURLConnection connection = open(url, key, "PUT", timeoutMillis);
+            try {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(entry.length());
+                connection.setRequestProperty("Content-Type", "application/gzip");
+                try (OutputStream out = connection.getOutputStream()) {
+                    Files.copy(entry.toPath(), out);
+                }
+                int status = connection.getResponseCode();
+                if (status / 100 != 2) {
+                    throw new IOException(String.format("put %s to the step cache failed: %d", key, status));
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+}
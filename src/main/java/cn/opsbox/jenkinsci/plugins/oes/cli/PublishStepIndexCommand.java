@@ -0,0 +1,63 @@
+package cn.opsbox.jenkinsci.plugins.oes.cli;
+
+import cn.opsbox.jenkinsci.plugins.oes.registry.RegistryMetadataCache;
+import cn.opsbox.jenkinsci.plugins.oes.registry.RegistryUtil;
+import cn.opsbox.jenkinsci.plugins.oes.registry.StepIndex;
+import cn.opsbox.jenkinsci.plugins.oes.registry.StepRegistry;
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import jenkins.model.Jenkins;
+import org.kohsuke.args4j.Argument;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Regenerate the version indexes of the steps in the configured registry.
+ *
+ * {@code java -jar jenkins-cli.jar oes-publish-index [STEP...]}
+ */
+@Extension
+public class PublishStepIndexCommand extends CLICommand {
+
+    @Argument(metaVar = "STEP", usage = "Steps to index, all steps of the registry when omitted")
+    public List<String> steps = new ArrayList<>();
+
+    @Override
+    public String getName() {
+        return "oes-publish-index";
+    }
+
+    @Override
+    public String getShortDescription() {
+        return "Regenerate the version index of OES steps";
+    }
+
+    @Override
+    protected int run() throws Exception {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+
+        StepRegistry stepRegistry = RegistryUtil.getStepRegistry();
+        List<String> stepIds = steps.isEmpty() ? stepRegistry.getStepList() : steps;
+        if (stepIds == null) {
+            stderr.println("--//ERR: list steps of the registry failed");
+            return 1;
+        }
+
+        int failures = 0;
+        for (String stepId : stepIds) {
+            try {
+                StepIndex stepIndex = stepRegistry.publishIndex(stepId);
+                StepIndex.Entry latest = stepIndex.findLatest();
+                stdout.println(String.format("--//INFO: indexed step(%s), %d versions, latest %s",
+                        stepId, stepIndex.getVersions().size(), latest == null ? "-" : latest.getVersion()));
+            } catch (Exception e) {
+                failures++;
+                stderr.println(String.format("--//ERR: index step(%s) failed: %s", stepId, e.getMessage()));
+            }
+        }
+
+        RegistryMetadataCache.get().invalidateAll();
+        return failures == 0 ? 0 : 1;
+    }
+}
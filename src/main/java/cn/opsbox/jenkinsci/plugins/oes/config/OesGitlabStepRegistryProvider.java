@@ -31,6 +31,9 @@ public class OesGitlabStepRegistryProvider extends StepRegistryProvider{
     @Getter
     private String stepsGroup;
 
+    @Getter
+    private boolean zipArchive;
+
     @DataBoundConstructor
     public OesGitlabStepRegistryProvider(String gitlabUrl, String credentialsId) {
         this.gitlabUrl = gitlabUrl;
@@ -42,6 +45,11 @@ public class OesGitlabStepRegistryProvider extends StepRegistryProvider{
         this.stepsGroup = stepsGroup;
     }
 
+    @DataBoundSetter
+    public void setZipArchive(boolean zipArchive) {
+        this.zipArchive = zipArchive;
+    }
+
     public StandardCredentials getCredentials() {
         return CredentialsMatchers.firstOrNull(
                 CredentialsProvider.lookupCredentials(StandardCredentials.class,
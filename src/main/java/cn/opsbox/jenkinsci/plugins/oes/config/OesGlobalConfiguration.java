@@ -1,5 +1,9 @@
 package cn.opsbox.jenkinsci.plugins.oes.config;
 
+import cn.opsbox.jenkinsci.plugins.oes.ant.AntExecMode;
+import cn.opsbox.jenkinsci.plugins.oes.registry.RegistryMetadataCache;
+import cn.opsbox.jenkinsci.plugins.oes.registry.RegistryUtil;
+import cn.opsbox.jenkinsci.plugins.oes.registry.StepCatalog;
 import hudson.Extension;
 import jenkins.model.GlobalConfiguration;
 import lombok.Getter;
@@ -7,6 +11,9 @@ import lombok.Setter;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.StaplerRequest;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Extension(ordinal = 6)
 public class OesGlobalConfiguration extends GlobalConfiguration {
 
@@ -14,17 +21,168 @@ public class OesGlobalConfiguration extends GlobalConfiguration {
     @Setter
     private StepRegistryProvider stepRegistryProvider;
 
+    /**
+     * registries serving the same steps, used when the primary one is slow or down.
+     */
+    @Setter
+    private List<StepRegistryProvider> fallbackProviders = new ArrayList<>();
+
+    /**
+     * a registry lookup is sent to the next registry as well when no answer came within this delay, 0 disables it.
+     */
+    @Getter
+    @Setter
+    private long hedgeDelayMillis = 500;
+
+    /**
+     * share extracted step packages between the workspaces of an agent.
+     */
+    @Getter
+    @Setter
+    private boolean stepStoreEnabled;
+
+    @Getter
+    @Setter
+    private long stepStoreMaxSizeMb = 2048;
+
+    /**
+     * run from the stored step package and refresh it in the background.
+     */
+    @Getter
+    @Setter
+    private boolean staleWhileRevalidate;
+
+    /**
+     * how long a pipeline waits for the registry to resolve a step which has a stored package.
+     */
+    @Getter
+    @Setter
+    private long revalidateTimeoutSeconds = 5;
+
+    /**
+     * how long registry lookups such as the latest step version are cached, 0 disables the cache.
+     */
+    @Getter
+    @Setter
+    private long metadataCacheTtlSeconds = 60;
+
+    /**
+     * threads downloading the step packages of a pipeline ahead of its run, 0 disables the prefetch.
+     */
+    @Getter
+    @Setter
+    private int prefetchThreads = 4;
+
+    /**
+     * keep step packages on the controller and serve agents from there.
+     */
+    @Getter
+    @Setter
+    private boolean stepMirrorEnabled;
+
+    @Getter
+    @Setter
+    private long stepMirrorMaxSizeMb = 10240;
+
+    /**
+     * timeouts of the registry http clients.
+     */
+    @Getter
+    @Setter
+    private int connectTimeoutSeconds = 10;
+
+    @Getter
+    @Setter
+    private int readTimeoutSeconds = 60;
+
+    /**
+     * how steps run their ant, unless a step sets {@code ant.mode}.
+     */
+    @Getter
+    @Setter
+    private AntExecMode antExecMode = AntExecMode.FORK;
+
+    /**
+     * an ant daemon exits after running no step for this time.
+     */
+    @Getter
+    @Setter
+    private long antDaemonIdleMinutes = 30;
+
+    /**
+     * steps declaring {@code cache.outputs} restore them instead of running when their inputs are unchanged.
+     */
+    @Getter
+    @Setter
+    private boolean stepResultCacheEnabled = true;
+
+    /**
+     * a http cache of step results shared by the nodes, empty for the cache of each node only.
+     */
+    @Getter
+    @Setter
+    private String stepResultCacheUrl;
+
+    /**
+     * step results used least recently are removed from a node above this size, 0 is unlimited.
+     */
+    @Getter
+    @Setter
+    private long stepResultCacheMaxSizeMb = 2048;
+
+    /**
+     * keys of the pipeline caches used least recently are removed from a node above this size, 0 is unlimited.
+     */
+    @Getter
+    @Setter
+    private long pipelineCacheMaxSizeMb = 4096;
+
+    /**
+     * steps running ant at the same time on a node, in any ant mode, 0 is unlimited.
+     */
+    @Getter
+    @Setter
+    private int maxForkedStepsPerNode;
+
+    /**
+     * step packages downloaded at the same time for a node, 0 is unlimited.
+     */
+    @Getter
+    @Setter
+    private int maxDownloadsPerNode;
+
+    /**
+     * step package bytes streamed to a node for extraction at the same time, 0 is unlimited.
+     */
+    @Getter
+    @Setter
+    private int maxExtractionMbPerNode;
+
     public OesGlobalConfiguration() {
         load();
     }
 
     @Override
     public boolean configure(StaplerRequest req, JSONObject json) {
+        // an empty list is missing from the form data
+        fallbackProviders = new ArrayList<>();
         req.bindJSON(this, json);
         save();
+        RegistryMetadataCache.get().invalidateAll();
+        RegistryUtil.invalidate();
+        StepCatalog.get().refreshAsync();
         return true;
     }
 
+    public String getMetadataCacheStats() {
+        RegistryMetadataCache cache = RegistryMetadataCache.get();
+        return String.format("hits: %d, misses: %d", cache.getHitCount(), cache.getMissCount());
+    }
+
+    public List<StepRegistryProvider> getFallbackProviders() {
+        return fallbackProviders == null ? new ArrayList<>() : fallbackProviders;
+    }
+
     public static OesGlobalConfiguration get() {
         return GlobalConfiguration.all().get(OesGlobalConfiguration.class);
     }
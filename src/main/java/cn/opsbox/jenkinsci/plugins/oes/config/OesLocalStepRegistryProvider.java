@@ -0,0 +1,43 @@
+package cn.opsbox.jenkinsci.plugins.oes.config;
+
+import cn.opsbox.jenkinsci.plugins.oes.util.Constants;
+import hudson.Extension;
+import lombok.Getter;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+public class OesLocalStepRegistryProvider extends StepRegistryProvider {
+
+    @Getter
+    private String rootDir;
+
+    @Getter
+    protected String archiveLane = Constants.STEP_ARCHIVE_LANE;
+
+    @Getter
+    protected String archiveGroup = Constants.STEP_ARCHIVE_GROUP;
+
+    @DataBoundConstructor
+    public OesLocalStepRegistryProvider(String rootDir) {
+        this.rootDir = rootDir;
+    }
+
+    @DataBoundSetter
+    public void setArchiveLane(String archiveLane) {
+        this.archiveLane = archiveLane;
+    }
+
+    @DataBoundSetter
+    public void setArchiveGroup(String archiveGroup) {
+        this.archiveGroup = archiveGroup;
+    }
+
+    @Extension(ordinal = 1)
+    public static class DescriptorImpl extends StepRegistryProviderDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "Local Directory";
+        }
+    }
+}
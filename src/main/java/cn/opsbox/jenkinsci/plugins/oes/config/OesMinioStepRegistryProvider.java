@@ -38,6 +38,8 @@ public class OesMinioStepRegistryProvider extends StepRegistryProvider {
     @Getter
     protected String archiveGroup = Constants.STEP_ARCHIVE_GROUP;
 
+    @Getter
+    private boolean agentFetch;
 
     @DataBoundConstructor
     public OesMinioStepRegistryProvider(String endpoint, String credentialsId, String bucket) {
@@ -56,6 +58,11 @@ public class OesMinioStepRegistryProvider extends StepRegistryProvider {
         this.archiveGroup = archiveGroup;
     }
 
+    @DataBoundSetter
+    public void setAgentFetch(boolean agentFetch) {
+        this.agentFetch = agentFetch;
+    }
+
     public StandardCredentials getCredentials() {
         return CredentialsMatchers.firstOrNull(
                 CredentialsProvider.lookupCredentials(StandardCredentials.class,
@@ -0,0 +1,54 @@
+package cn.opsbox.jenkinsci.plugins.oes.pipeline;
+
+import lombok.Data;
+import lombok.SneakyThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * cache:
+ *   key: maven-${APP_NAME}
+ *   files: [pom.xml]      # the hash of their contents is added to the key
+ *   paths:
+ *     - .m2/repository
+ *
+ * Directories of the workspace kept on the node between builds, such as the dependencies of a build tool.
+ */
+@Data
+public class Cache {
+
+    public static final String KEY_KEY = "key";
+    public static final String KEY_FILES = "files";
+    public static final String KEY_PATHS = "paths";
+
+    private String key;
+
+    private List<String> files = new ArrayList<>();
+
+    private List<String> paths = new ArrayList<>();
+
+    @SneakyThrows
+    public static Cache parse(Object rawConfig) {
+        if (!(rawConfig instanceof Map)) {
+            throw new ConfigException("cache config format error");
+        }
+        Map cacheConfig = (Map) rawConfig;
+        if (cacheConfig.get(KEY_KEY) == null || !(cacheConfig.get(KEY_PATHS) instanceof List)) {
+            throw new ConfigException("cache config needs key and paths");
+        }
+
+        Cache cache = new Cache();
+        cache.key = String.valueOf(cacheConfig.get(KEY_KEY));
+        for (Object path : (List) cacheConfig.get(KEY_PATHS)) {
+            cache.paths.add(String.valueOf(path));
+        }
+        if (cacheConfig.get(KEY_FILES) instanceof List) {
+            for (Object file : (List) cacheConfig.get(KEY_FILES)) {
+                cache.files.add(String.valueOf(file));
+            }
+        }
+        return cache;
+    }
+}
@@ -19,6 +19,20 @@ public class Config {
     public static final String KEY_NAME = "name";
     public static final String KEY_WHEN = "when";
     public static final String KEY_STEP_ID = "step.id";
+    public static final String KEY_NEEDS = "needs";
+    public static final String KEY_PARALLEL = "parallel";
+    public static final String KEY_MATRIX = "matrix";
+    public static final String KEY_AXES = "axes";
+    public static final String KEY_AGENT = "agent";
+    public static final String KEY_LABEL = "label";
+    public static final String KEY_OUTPUTS = "outputs";
+    public static final String KEY_PARALLELISM = "parallelism";
+    public static final String KEY_CACHE = "cache";
+
+    /**
+     * stages running at the same time when stages declare {@code needs}.
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
 
     private final Map rawConfig;
 
@@ -26,6 +40,10 @@ public class Config {
 
     private Map<String, String> environment;
 
+    private int parallelism = DEFAULT_PARALLELISM;
+
+    private List<Cache> caches = new ArrayList<>();
+
     @SneakyThrows
     Config(String config) {
         this.rawConfig = new Yaml().load(config);
@@ -35,6 +53,8 @@ public class Config {
     public static Config parse(String rawConfig) {
         Config config = new Config(rawConfig);
         config.parseEnvironment();
+        config.parseParallelism();
+        config.parseCaches();
         config.parsePipeline();
         return config;
     }
@@ -48,6 +68,30 @@ public class Config {
         environment = localEnviron;
     }
 
+    private void parseParallelism() throws ConfigException {
+        if (rawConfig.containsKey(KEY_PARALLELISM)) {
+            try {
+                parallelism = Math.max(Integer.parseInt(String.valueOf(rawConfig.get(KEY_PARALLELISM))), 1);
+            } catch (NumberFormatException e) {
+                throw new ConfigException("parallelism config format error", e);
+            }
+        }
+    }
+
+    /**
+     * cache: a cache, or a list of caches
+     */
+    private void parseCaches() {
+        Object cacheConfig = rawConfig.get(KEY_CACHE);
+        if (cacheConfig instanceof List) {
+            for (Object rawCache : (List) cacheConfig) {
+                caches.add(Cache.parse(rawCache));
+            }
+        } else if (cacheConfig != null) {
+            caches.add(Cache.parse(cacheConfig));
+        }
+    }
+
     private void parsePipeline() throws ConfigException {
         /**
          * pipeline:
@@ -62,7 +106,9 @@ public class Config {
 
         if (pipelineConfig != null) {
             for (Object stepConfig: pipelineConfig) {
-                if (stepConfig instanceof Map) {
+                if (stepConfig instanceof Map && ((Map) stepConfig).containsKey(KEY_MATRIX)) {
+                    stages.addAll(Stage.parseMatrix((Map) stepConfig, environment));
+                } else if (stepConfig instanceof Map) {
                     Stage stage = Stage.parse((Map) stepConfig, environment);
                     stages.add(stage);
                 } else {
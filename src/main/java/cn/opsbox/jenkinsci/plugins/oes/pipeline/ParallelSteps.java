@@ -0,0 +1,52 @@
+package cn.opsbox.jenkinsci.plugins.oes.pipeline;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Steps of a stage running at the same time, each with its own property file and ant process.
+ *
+ * steps:
+ *   - parallel:
+ *       - docker:
+ *           build.tag: app:1.0.0
+ *       - kubectl:
+ *           image: app:1.0.0
+ */
+public class ParallelSteps extends Step {
+
+    @Getter
+    private final List<Step> steps = new ArrayList<>();
+
+    public ParallelSteps() {
+        super(Config.KEY_PARALLEL);
+    }
+
+    public static boolean isParallel(Object rawConfig) {
+        return rawConfig instanceof Map
+                && ((Map) rawConfig).size() == 1
+                && ((Map) rawConfig).containsKey(Config.KEY_PARALLEL);
+    }
+
+    public static ParallelSteps parse(Object rawConfig) throws ConfigException {
+        Object stepsConfig = ((Map) rawConfig).get(Config.KEY_PARALLEL);
+        if (!(stepsConfig instanceof List)) {
+            throw new ConfigException("parallel steps configure format error");
+        }
+
+        ParallelSteps parallelSteps = new ParallelSteps();
+        for (Object stepConfig : (List) stepsConfig) {
+            if (isParallel(stepConfig)) {
+                throw new ConfigException("parallel steps can't be nested");
+            }
+            Step step = Step.parse(stepConfig);
+            if (step != null) {
+                parallelSteps.steps.add(step);
+            }
+        }
+        return parallelSteps;
+    }
+}
@@ -6,6 +6,7 @@ import lombok.SneakyThrows;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -20,6 +21,33 @@ public class Stage {
     private List<Step> afterSteps = new ArrayList<Step>();
     private Map<String, Object> conditions = new HashMap<String, Object>();
 
+    /**
+     * the names of the stages this stage runs after, {@code null} for the stage before it.
+     */
+    private List<String> needs;
+
+    /**
+     * the name of the matrix stage this stage is a cell of, {@code null} for other stages.
+     */
+    private String matrix;
+
+    private Map<String, String> axisValues = new LinkedHashMap<>();
+
+    /**
+     * cells of the matrix running at the same time, 0 for no limit but the pipeline parallelism.
+     */
+    private int matrixParallelism;
+
+    /**
+     * the label of the nodes the stage runs on, {@code null} to run in the workspace of the build.
+     */
+    private String agentLabel;
+
+    /**
+     * ant patterns of the workspace files the stage hands over to the stages after it.
+     */
+    private List<String> outputs = new ArrayList<>();
+
     public Stage(String name) {
         this.name = name;
     }
@@ -30,7 +58,78 @@ public class Stage {
             throw new ConfigException("stage config format error");
         }
 
-        Stage step = new Stage((String) rawConfig.get(Config.KEY_NAME));
+        return parse(rawConfig, environment, (String) rawConfig.get(Config.KEY_NAME));
+    }
+
+    /**
+     * matrix:
+     *   axes:
+     *     JDK: [8, 11]
+     *     ARCH: [amd64, arm64]
+     *   parallelism: 2
+     *
+     * A stage for each combination of the axis values, with the values in its environment.
+     */
+    @SneakyThrows
+    public static List<Stage> parseMatrix(Map rawConfig, Map<String, String> environment) {
+        if (!rawConfig.containsKey(Config.KEY_NAME) || !(rawConfig.get(Config.KEY_MATRIX) instanceof Map)) {
+            throw new ConfigException("matrix stage config format error");
+        }
+        String name = (String) rawConfig.get(Config.KEY_NAME);
+        Map matrixConfig = (Map) rawConfig.get(Config.KEY_MATRIX);
+
+        if (!(matrixConfig.get(Config.KEY_AXES) instanceof Map) || ((Map) matrixConfig.get(Config.KEY_AXES)).isEmpty()) {
+            throw new ConfigException(String.format("matrix stage(%s) has no axes", name));
+        }
+
+        List<Map<String, String>> cells = new ArrayList<>();
+        cells.add(new LinkedHashMap<>());
+        for (Object axisEntry : ((Map) matrixConfig.get(Config.KEY_AXES)).entrySet()) {
+            String axis = String.valueOf(((Map.Entry) axisEntry).getKey());
+            Object values = ((Map.Entry) axisEntry).getValue();
+            if (!(values instanceof List) || ((List) values).isEmpty()) {
+                throw new ConfigException(String.format("matrix stage(%s) axis(%s) has no values", name, axis));
+            }
+
+            List<Map<String, String>> expanded = new ArrayList<>();
+            for (Map<String, String> cell : cells) {
+                for (Object value : (List) values) {
+                    Map<String, String> expandedCell = new LinkedHashMap<>(cell);
+                    expandedCell.put(axis, String.valueOf(value));
+                    expanded.add(expandedCell);
+                }
+            }
+            cells = expanded;
+        }
+
+        int parallelism = 0;
+        if (matrixConfig.containsKey(Config.KEY_PARALLELISM)) {
+            try {
+                parallelism = Integer.parseInt(String.valueOf(matrixConfig.get(Config.KEY_PARALLELISM)));
+            } catch (NumberFormatException e) {
+                throw new ConfigException(String.format("matrix stage(%s) parallelism format error", name), e);
+            }
+        }
+
+        List<Stage> stages = new ArrayList<>();
+        for (Map<String, String> axisValues : cells) {
+            List<String> cellName = new ArrayList<>();
+            for (Map.Entry<String, String> axisValue : axisValues.entrySet()) {
+                cellName.add(String.format("%s=%s", axisValue.getKey(), axisValue.getValue()));
+            }
+
+            Stage stage = parse(rawConfig, environment, String.format("%s (%s)", name, String.join(", ", cellName)));
+            stage.environment.putAll(axisValues);
+            stage.matrix = name;
+            stage.axisValues = axisValues;
+            stage.matrixParallelism = Math.max(parallelism, 0);
+            stages.add(stage);
+        }
+        return stages;
+    }
+
+    private static Stage parse(Map rawConfig, Map<String, String> environment, String name) throws ConfigException {
+        Stage step = new Stage(name);
         step.rawConfig = rawConfig;
         step.environment = new HashMap<>(environment);
 
@@ -44,6 +143,40 @@ public class Stage {
             step.conditions = (Map<String, Object>) rawConfig.get(Config.KEY_WHEN);
         }
 
+        // parse 'needs'
+        if (rawConfig.containsKey(Config.KEY_NEEDS)) {
+            Object needsConfig = rawConfig.get(Config.KEY_NEEDS);
+            step.needs = new ArrayList<>();
+            if (needsConfig instanceof List) {
+                for (Object need : (List) needsConfig) {
+                    step.needs.add(String.valueOf(need));
+                }
+            } else if (needsConfig != null) {
+                step.needs.add(String.valueOf(needsConfig));
+            }
+        }
+
+        // parse 'agent'
+        if (rawConfig.containsKey(Config.KEY_AGENT)) {
+            Object agentConfig = rawConfig.get(Config.KEY_AGENT);
+            if (!(agentConfig instanceof Map) || ((Map) agentConfig).get(Config.KEY_LABEL) == null) {
+                throw new ConfigException(String.format("stage(%s) agent has no label", name));
+            }
+            step.agentLabel = String.valueOf(((Map) agentConfig).get(Config.KEY_LABEL));
+        }
+
+        // parse 'outputs'
+        if (rawConfig.containsKey(Config.KEY_OUTPUTS)) {
+            Object outputsConfig = rawConfig.get(Config.KEY_OUTPUTS);
+            if (outputsConfig instanceof List) {
+                for (Object output : (List) outputsConfig) {
+                    step.outputs.add(String.valueOf(output));
+                }
+            } else if (outputsConfig != null) {
+                step.outputs.add(String.valueOf(outputsConfig));
+            }
+        }
+
         // parse 'tasks/after-tasks'
         step.steps = step.parseTasks(Config.KEY_STEPS);
         step.afterSteps = step.parseTasks(Config.KEY_AFTER_STEPS);
@@ -55,6 +188,7 @@ public class Stage {
         return step;
     }
 
+    @SneakyThrows
     private List<Step> parseTasks(String keyword) {
         List<Step> tasks = new ArrayList<Step>();
 
@@ -64,7 +198,8 @@ public class Stage {
 
             if (tasksConfig != null) {
                 for (Object taskConfig : tasksConfig) {
-                    Step task = Step.parse(taskConfig);
+                    Step task = ParallelSteps.isParallel(taskConfig)
+                            ? ParallelSteps.parse(taskConfig) : Step.parse(taskConfig);
                     if (task != null) {
                         tasks.add(task);
                     }
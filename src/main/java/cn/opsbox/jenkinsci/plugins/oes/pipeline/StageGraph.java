@@ -0,0 +1,151 @@
+package cn.opsbox.jenkinsci.plugins.oes.pipeline;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The dependencies between the stages of a run, from their {@code needs}.
+ *
+ * A stage without {@code needs} depends on the stage before it, so pipelines without {@code needs}
+ * keep running stage after stage.
+ * The cells of a matrix stage run at the same time, needing the name of the matrix means needing all of its cells.
+ */
+public class StageGraph {
+
+    private final List<Stage> stages;
+
+    private final List<Set<Integer>> dependencies = new ArrayList<>();
+
+    private boolean sequential = true;
+
+    private StageGraph(List<Stage> stages) {
+        this.stages = stages;
+    }
+
+    /**
+     * @param stages the stages to run
+     * @param allStages all stages of the pipeline, needs of stages which don't run are ignored
+     */
+    public static StageGraph of(List<Stage> stages, List<Stage> allStages) throws ConfigException {
+        StageGraph graph = new StageGraph(stages);
+
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            Set<Integer> stageDependencies = new HashSet<>();
+
+            if (stage.getMatrix() != null) {
+                graph.sequential = false;
+            }
+
+            if (stage.getNeeds() == null) {
+                stageDependencies.addAll(previousOf(stages, i));
+            } else {
+                graph.sequential = false;
+                for (String need : stage.getNeeds()) {
+                    List<Integer> indexes = indexesOf(stages, need);
+                    if (!indexes.isEmpty()) {
+                        stageDependencies.addAll(indexes);
+                    } else if (indexesOf(allStages, need).isEmpty()) {
+                        throw new ConfigException(String.format("stage(%s) needs stage(%s) which is not configure",
+                                stage.getName(), need));
+                    }
+                }
+            }
+            graph.dependencies.add(stageDependencies);
+        }
+
+        graph.checkCycles();
+        return graph;
+    }
+
+    public List<Stage> getStages() {
+        return stages;
+    }
+
+    /**
+     * @return the indexes of the stages the stage at the index needs.
+     */
+    public Set<Integer> getDependencies(int index) {
+        return dependencies.get(index);
+    }
+
+    /**
+     * @return whether no stage declares {@code needs}, so the stages run one after another.
+     */
+    public boolean isSequential() {
+        return sequential;
+    }
+
+    private void checkCycles() throws ConfigException {
+        int[] remaining = new int[stages.size()];
+        Deque<Integer> ready = new ArrayDeque<>();
+        for (int i = 0; i < stages.size(); i++) {
+            remaining[i] = dependencies.get(i).size();
+            if (remaining[i] == 0) {
+                ready.add(i);
+            }
+        }
+
+        int visited = 0;
+        while (!ready.isEmpty()) {
+            int done = ready.poll();
+            visited++;
+            for (int i = 0; i < stages.size(); i++) {
+                if (dependencies.get(i).contains(done) && --remaining[i] == 0) {
+                    ready.add(i);
+                }
+            }
+        }
+
+        if (visited != stages.size()) {
+            List<String> cycle = new ArrayList<>();
+            for (int i = 0; i < stages.size(); i++) {
+                if (remaining[i] > 0) {
+                    cycle.add(stages.get(i).getName());
+                }
+            }
+            throw new ConfigException(String.format("stages %s need each other", cycle));
+        }
+    }
+
+    /**
+     * @return the stages named so, or the cells of the matrix named so.
+     */
+    private static List<Integer> indexesOf(List<Stage> stages, String name) {
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < stages.size(); i++) {
+            if (stages.get(i).getName().equals(name) || name.equals(stages.get(i).getMatrix())) {
+                indexes.add(i);
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * @return the stage before the stage at the index, or all cells of the matrix before it.
+     */
+    private static List<Integer> previousOf(List<Stage> stages, int index) {
+        int previous = index - 1;
+
+        // the cells of a matrix don't need each other
+        String matrix = stages.get(index).getMatrix();
+        while (matrix != null && previous >= 0 && matrix.equals(stages.get(previous).getMatrix())) {
+            previous--;
+        }
+
+        List<Integer> indexes = new ArrayList<>();
+        if (previous < 0) {
+            return indexes;
+        }
+
+        String previousMatrix = stages.get(previous).getMatrix();
+        do {
+            indexes.add(previous--);
+        } while (previousMatrix != null && previous >= 0 && previousMatrix.equals(stages.get(previous).getMatrix()));
+        return indexes;
+    }
+}
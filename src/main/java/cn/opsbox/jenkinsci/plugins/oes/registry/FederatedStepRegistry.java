@@ -0,0 +1,304 @@
+package cn.opsbox.jenkinsci.plugins.oes.registry;
+
+import cn.opsbox.jenkinsci.plugins.oes.pipeline.Step;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import hudson.FilePath;
+import hudson.model.Computer;
+import lombok.SneakyThrows;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Several registries serving the same steps, such as minio replicas in several data centers.
+ *
+ * Requests go to the fastest healthy registry and fail over to the next one. Lookups can be hedged:
+ * when the first registry doesn't answer within the hedge delay, the next one is asked as well
+ * and the first answer wins. Downloads are never hedged, both would write the same step dir.
+ */
+public class FederatedStepRegistry extends StepRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(FederatedStepRegistry.class.getName());
+
+    /**
+     * a registry with this many failures in a row is used only after all healthy ones.
+     */
+    private static final int UNHEALTHY_FAILURES = 3;
+
+    private static final long UNHEALTHY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final int RESOLVED_BY_MAX_SIZE = 1000;
+
+    private final List<Member> members = new ArrayList<>();
+
+    private final long hedgeDelayMillis;
+
+    /**
+     * the registry which resolved a package, its digest is only valid for that registry.
+     * Packages resolved long ago are forgotten, they are downloaded from any registry then.
+     */
+    private final Cache<String, StepRegistry> resolvedBy = CacheBuilder.newBuilder()
+            .maximumSize(RESOLVED_BY_MAX_SIZE)
+            .build();
+
+    public FederatedStepRegistry(List<StepRegistry> registries, long hedgeDelayMillis) {
+        for (int i = 0; i < registries.size(); i++) {
+            members.add(new Member(registries.get(i), i));
+        }
+        this.hedgeDelayMillis = hedgeDelayMillis;
+    }
+
+    @Override
+    public void setMirror(StepPackageMirror mirror) {
+        super.setMirror(mirror);
+        for (Member member : members) {
+            member.registry.setMirror(mirror);
+        }
+    }
+
+    @Override
+    public List<String> getStepList() {
+        for (Member member : getOrderedMembers()) {
+            long start = System.currentTimeMillis();
+            try {
+                List<String> stepList = member.registry.getStepList();
+                if (stepList != null) {
+                    member.succeeded(System.currentTimeMillis() - start);
+                    return stepList;
+                }
+                member.failed();
+            } catch (Exception e) {
+                member.failed();
+                LOGGER.log(Level.WARNING, String.format("registry(%s) step list failed", member.index), e);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public StepPackage resolve(Step step) throws IOException {
+        return resolve(step, null);
+    }
+
+    @Override
+    public StepPackage resolve(Step step, FilePath ws) throws IOException {
+        List<Member> ordered = getOrderedMembers();
+        CompletionService<Resolved> completion = new ExecutorCompletionService<>(Computer.threadPoolForRemoting);
+        List<Future<Resolved>> futures = new ArrayList<>();
+        IOException lastError = null;
+
+        int next = 0;
+        int running = 0;
+        try {
+            futures.add(completion.submit(resolveOn(ordered.get(next++), step, ws)));
+            running++;
+
+            while (running > 0) {
+                Future<Resolved> done = hedgeDelayMillis > 0 && next < ordered.size()
+                        ? completion.poll(hedgeDelayMillis, TimeUnit.MILLISECONDS)
+                        : completion.take();
+
+                if (done == null) {
+                    // the registry is slow, hedge with the next one
+                    futures.add(completion.submit(resolveOn(ordered.get(next++), step, ws)));
+                    running++;
+                    continue;
+                }
+
+                running--;
+                try {
+                    Resolved resolved = done.get();
+                    resolvedBy.put(resolvedKey(resolved.stepPackage), resolved.member.registry);
+                    return resolved.stepPackage;
+                } catch (ExecutionException e) {
+                    lastError = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+
+                if (running == 0 && next < ordered.size()) {
+                    futures.add(completion.submit(resolveOn(ordered.get(next++), step, ws)));
+                    running++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            for (Future<Resolved> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        throw lastError;
+    }
+
+    @SneakyThrows
+    @Override
+    public String download(Step step, FilePath saveTo) {
+        return download(resolve(step, saveTo), saveTo);
+    }
+
+    @SneakyThrows
+    @Override
+    public String download(StepPackage stepPackage, FilePath saveTo) {
+        StepRegistry resolver = resolvedBy.getIfPresent(resolvedKey(stepPackage));
+        Exception lastError = null;
+
+        for (Member member : getOrderedMembers()) {
+            // another registry of the federation computes its own digest of the version
+            StepPackage memberPackage = member.registry == resolver ? stepPackage
+                    : new StepPackage(stepPackage.getStepId(), stepPackage.getVersion(), null);
+
+            long start = System.currentTimeMillis();
+            try {
+                String version = member.registry.download(memberPackage, saveTo);
+                member.succeeded(System.currentTimeMillis() - start);
+                return version;
+            } catch (Exception e) {
+                if (isCancelled(e)) {
+                    // the build was aborted, the registry didn't fail
+                    throw e;
+                }
+                member.failed();
+                lastError = e;
+                LOGGER.log(Level.WARNING, String.format("registry(%s) download of %s failed, try the next one",
+                        member.index, stepPackage.getKey()), e);
+            }
+        }
+
+        throw lastError;
+    }
+
+    /**
+     * Index the step on every registry of the federation which keeps indexes.
+     */
+    @Override
+    public StepIndex publishIndex(String stepId) throws IOException {
+        StepIndex stepIndex = null;
+        IOException lastError = null;
+
+        for (Member member : members) {
+            try {
+                StepIndex memberIndex = member.registry.publishIndex(stepId);
+                if (stepIndex == null) {
+                    stepIndex = memberIndex;
+                }
+            } catch (IOException e) {
+                lastError = e;
+                LOGGER.log(Level.WARNING, String.format("registry(%s) index of %s failed", member.index, stepId), e);
+            }
+        }
+
+        if (stepIndex == null) {
+            throw lastError;
+        }
+        return stepIndex;
+    }
+
+    private Callable<Resolved> resolveOn(Member member, Step step, FilePath ws) {
+        return () -> {
+            long start = System.currentTimeMillis();
+            try {
+                StepPackage stepPackage = member.registry.resolve(step, ws);
+                member.succeeded(System.currentTimeMillis() - start);
+                return new Resolved(member, stepPackage);
+            } catch (Exception e) {
+                if (isCancelled(e)) {
+                    // a hedge answered first, the registry is slower but not failing
+                    member.cancelled(System.currentTimeMillis() - start);
+                } else {
+                    member.failed();
+                }
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * @return whether the request was interrupted, by the cancel of a lost hedge or an aborted build.
+     */
+    private static boolean isCancelled(Exception e) {
+        return Thread.currentThread().isInterrupted() || e instanceof InterruptedException
+                || e instanceof InterruptedIOException || e instanceof CancellationException;
+    }
+
+    private static String resolvedKey(StepPackage stepPackage) {
+        return String.format("%s#%s", stepPackage.getKey(), stepPackage.getDigest());
+    }
+
+    /**
+     * healthy registries first, then by latency, then in the configured order.
+     * Registries not measured yet come after the measured ones, in the configured order.
+     */
+    private List<Member> getOrderedMembers() {
+        long now = System.currentTimeMillis();
+        List<Member> ordered = new ArrayList<>(members);
+        ordered.sort(Comparator.<Member, Boolean>comparing(member -> !member.isHealthy(now))
+                .thenComparingDouble(member -> member.latencyMillis)
+                .thenComparingInt(member -> member.index));
+        return ordered;
+    }
+
+    private static final class Member {
+
+        private final StepRegistry registry;
+
+        private final int index;
+
+        /**
+         * moving average of the request time, unknown until the registry answered once.
+         */
+        private volatile double latencyMillis = Double.POSITIVE_INFINITY;
+
+        private volatile int failures;
+
+        private volatile long lastFailure;
+
+        Member(StepRegistry registry, int index) {
+            this.registry = registry;
+            this.index = index;
+        }
+
+        synchronized void succeeded(long millis) {
+            latencyMillis = Double.isInfinite(latencyMillis) ? millis : latencyMillis * 0.7 + millis * 0.3;
+            failures = 0;
+        }
+
+        /**
+         * The request was cancelled after the time, the registry takes that long at least.
+         */
+        synchronized void cancelled(long millis) {
+            if (Double.isInfinite(latencyMillis) || millis > latencyMillis) {
+                latencyMillis = Double.isInfinite(latencyMillis) ? millis : latencyMillis * 0.7 + millis * 0.3;
+            }
+        }
+
+        synchronized void failed() {
+            failures++;
+            lastFailure = System.currentTimeMillis();
+        }
+
+        boolean isHealthy(long now) {
+            return failures < UNHEALTHY_FAILURES || now - lastFailure > UNHEALTHY_MILLIS;
+        }
+    }
+
+    private static final class Resolved {
+
+        private final Member member;
+
+        private final StepPackage stepPackage;
+
+        Resolved(Member member, StepPackage stepPackage) {
+            this.member = member;
+            this.stepPackage = stepPackage;
+        }
+    }
+}
@@ -8,11 +8,17 @@ import lombok.Setter;
 import lombok.SneakyThrows;
 import org.gitlab4j.api.Constants;
 import org.gitlab4j.api.GitLabApi;
+import org.gitlab4j.api.GitLabApiException;
+import org.gitlab4j.api.Pager;
 import org.gitlab4j.api.models.Project;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class OesGitlabStepRegistry extends StepRegistry{
 
@@ -28,72 +34,180 @@ public class OesGitlabStepRegistry extends StepRegistry{
     @Setter
     private String stepsGroup;
 
+    /**
+     * the format of the repository archives, zip archives are extracted in parallel and partially.
+     */
+    @Getter
+    @Setter
+    private PackageFormat archiveFormat = PackageFormat.TAR_GZ;
+
     private final GitLabApi gitLabApi;
 
     public OesGitlabStepRegistry(String gitlabUrl, String accessToken) {
         super();
+        this.gitlabUrl = gitlabUrl;
         gitLabApi = new GitLabApi(gitlabUrl, accessToken);
     }
 
+    public void setTimeout(int connectTimeoutSeconds, int readTimeoutSeconds) {
+        gitLabApi.setRequestTimeout((int) TimeUnit.SECONDS.toMillis(connectTimeoutSeconds),
+                (int) TimeUnit.SECONDS.toMillis(readTimeoutSeconds));
+    }
+
     @SneakyThrows
     @Override
     public List<String> getStepList() {
-        List<Project> projects = gitLabApi.getGroupApi().getProjects(this.stepsGroup);
+        Pager<Project> pager = gitLabApi.getGroupApi().getProjects(this.stepsGroup, 100);
         List<String> steps = new ArrayList<>();
 
-        for (Project project :projects) {
-            steps.add(project.getName());
+        while (pager.hasNext()) {
+            for (Project project : pager.next()) {
+                steps.add(project.getName());
+            }
         }
 
         return steps;
     }
 
+    @Override
+    public StepPackage resolve(Step step) throws IOException {
+        String[] projectPath = getProjectPath(step.getId());
+        Project stepProject = getProject(projectPath[0], projectPath[1]);
+
+        String stepVersion = step.getVersion();
+        if (stepVersion.trim().isEmpty()) {
+            stepVersion = stepProject.getDefaultBranch();
+        }
+        return new StepPackage(step.getId(), stepVersion, getCommitSha(stepProject, stepVersion));
+    }
+
     @SneakyThrows
     @Override
     public String download(Step step, FilePath saveTo) {
-        super.download(step, saveTo);
+        return download(resolve(step), saveTo);
+    }
 
-        String stepId = step.getId();
-        String stepVersion = step.getVersion();
+    @SneakyThrows
+    @Override
+    public String download(StepPackage stepPackage, FilePath saveTo) {
+        super.download(stepPackage, saveTo);
 
-        String[] stepName = stepId.split("/");
+        String stepId = stepPackage.getStepId();
+        String stepVersion = stepPackage.getVersion();
 
-        String gitlabGroup;
-        String gitlabProject;
-        if (stepName.length == 2) {
-            gitlabGroup = stepName[0];
-            gitlabProject = stepName[1];
-        } else if (stepName.length == 1) {
-            gitlabGroup = stepsGroup;
-            gitlabProject = stepId;
+        String[] projectPath = getProjectPath(stepId);
+        Project stepProject = getProject(projectPath[0], projectPath[1]);
+
+        String commitSha = stepPackage.getDigest();
+        if (commitSha == null) {
+            commitSha = getCommitSha(stepProject, stepVersion);
+        }
+
+        FilePath stepDir = new FilePath(saveTo, stepId);
+        if (PackageExtractor.isExtracted(stepDir, commitSha)) {
+            // the ref didn't move since the last download
+            return stepVersion;
+        }
+
+        String archiveFileName = String.format("archive%s", archiveFormat.getExtension());
+        InputStream inputStream;
+        if (getMirror() != null) {
+            String archiveSha = commitSha;
+            File archiveFile = getMirror().fetch(new StepPackage(stepId, stepVersion, commitSha),
+                    archiveFileName, false,
+                    () -> openArchive(stepProject, archiveSha));
+            inputStream = new FileInputStream(archiveFile);
         } else {
-            throw new OesException("step name format error");
+            inputStream = openArchive(stepProject, commitSha);
         }
 
-        Project stepProject = gitLabApi.getProjectApi().getProject(gitlabGroup, gitlabProject);
-        if (stepVersion.trim().isEmpty()) {
-            stepVersion = stepProject.getDefaultBranch();
+        if (archiveFormat == PackageFormat.ZIP) {
+            // the commit is recorded in the staging dir, before it is swapped in
+            PackageExtractor.extract(inputStream, stepDir, null, PackageFormat.ZIP, true, commitSha);
+            return stepVersion;
         }
-        InputStream inputStream = gitLabApi.getRepositoryApi().getRepositoryArchive(stepProject, stepVersion
-                , Constants.ArchiveFormat.TAR_GZ);
 
-        FilePath stepDir = new FilePath(saveTo, step.getId());
-        stepDir.mkdirs();
+        FilePath tmp = saveTo.createTempDir("archive", "tmp");
+        try {
+            tmp.untarFrom(inputStream, FilePath.TarCompression.GZIP);
+            List<FilePath> dirs = tmp.listDirectories();
+            if (dirs.size() != 1) {
+                throw new OesException("archive package format error");
+            }
+            PackageExtractor.markExtracted(dirs.get(0), commitSha);
+            StepDirLock.swap(dirs.get(0), stepDir);
+        } finally {
+            tmp.deleteRecursive();
+        }
+        return stepVersion;
+    }
 
-        FilePath tmp = new FilePath(saveTo, "archive-tmp");
-        tmp.mkdirs();
+    private InputStream openArchive(Project stepProject, String commitSha) throws IOException {
+        try {
+            return gitLabApi.getRepositoryApi().getRepositoryArchive(stepProject, commitSha
+                    , archiveFormat == PackageFormat.ZIP ? Constants.ArchiveFormat.ZIP : Constants.ArchiveFormat.TAR_GZ);
+        } catch (GitLabApiException e) {
+            throw new IOException(e);
+        }
+    }
 
-        tmp.untarFrom(inputStream, FilePath.TarCompression.GZIP);
-        List<FilePath> dirs = tmp.listDirectories();
-        if (dirs.size() == 1) {
-            stepDir.deleteRecursive();
-            stepDir.mkdirs();
-            dirs.get(0).moveAllChildrenTo(stepDir);
+    /**
+     * Resolve a branch, tag or commit to the commit sha, a single small request.
+     */
+    private String getCommitSha(Project stepProject, String ref) throws IOException {
+        String cacheKey = String.format("gitlab:%s/%s@%s", gitlabUrl, stepProject.getPathWithNamespace(), ref);
+
+        String commitSha = RegistryMetadataCache.get().get(cacheKey, () -> {
+            try {
+                return gitLabApi.getCommitsApi().getCommit(stepProject, ref).getId();
+            } catch (GitLabApiException e) {
+                if (e.getHttpStatus() == 404) {
+                    // the ref is missing, remember it.
+                    return null;
+                }
+                throw e;
+            }
+        });
+
+        if (commitSha == null) {
+            throw new IOException(String.format("step(%s) ref(%s) is not exists", stepProject.getPathWithNamespace(), ref));
+        }
+        return commitSha;
+    }
+
+    /**
+     * @return group and project of the step, {@code xxx/xxx} or a project of the steps group.
+     */
+    private String[] getProjectPath(String stepId) throws IOException {
+        String[] stepName = stepId.split("/");
+
+        if (stepName.length == 2) {
+            return stepName;
+        } else if (stepName.length == 1) {
+            return new String[]{stepsGroup, stepId};
         } else {
-            throw new OesException("archive package format error");
+            throw new IOException("step name format error");
         }
-        // clean tmp dir
-        tmp.deleteRecursive();
-        return stepVersion;
+    }
+
+    private Project getProject(String gitlabGroup, String gitlabProject) throws IOException {
+        String cacheKey = String.format("gitlab:%s/%s/%s", gitlabUrl, gitlabGroup, gitlabProject);
+
+        Project project = RegistryMetadataCache.get().get(cacheKey, () -> {
+            try {
+                return gitLabApi.getProjectApi().getProject(gitlabGroup, gitlabProject);
+            } catch (GitLabApiException e) {
+                if (e.getHttpStatus() == 404) {
+                    // the project is missing, remember it.
+                    return null;
+                }
+                throw e;
+            }
+        });
+
+        if (project == null) {
+            throw new IOException(String.format("step project(%s/%s) is not exists", gitlabGroup, gitlabProject));
+        }
+        return project;
     }
 }
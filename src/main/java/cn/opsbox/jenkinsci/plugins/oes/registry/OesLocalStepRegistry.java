@@ -0,0 +1,331 @@
+package cn.opsbox.jenkinsci.plugins.oes.registry;
+
+import cn.opsbox.jenkinsci.plugins.oes.pipeline.Step;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.SneakyThrows;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Step packages in a directory, such as a shared read-only volume, laid out like the minio bucket:
+ * {@code <root>/<lane>/<group>/<step>/<version>/<step>-<version>.tar.gz} or {@code .zip},
+ * with an optional {@code .md5} file.
+ *
+ * Lookups for a build read the directory on the node of the build, packages are extracted on the agent
+ * from its own mount, so they never cross the channel. The step list and the indexes are read and written
+ * on the first online node mounting the directory, the controller first.
+ */
+public class OesLocalStepRegistry extends StepRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(OesLocalStepRegistry.class.getName());
+
+    @Getter
+    @Setter
+    private String archiveLane;
+
+    @Getter
+    @Setter
+    private String archiveGroup;
+
+    private final String rootDir;
+
+    public OesLocalStepRegistry(String rootDir) {
+        this.rootDir = rootDir;
+    }
+
+    @Override
+    public List<String> getStepList() {
+        try {
+            List<FilePath> groupDirs = findGroupDirs();
+            if (groupDirs.isEmpty()) {
+                throw new IOException(String.format("dir(%s) is not mounted on any online node", getGroupDir()));
+            }
+            return getDirList(groupDirs.get(0));
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "list steps failed", e);
+        }
+        return null;
+    }
+
+    @SneakyThrows
+    @Override
+    public String download(Step step, FilePath saveTo) {
+        return download(resolve(step, saveTo), saveTo);
+    }
+
+    @SneakyThrows
+    @Override
+    public String download(StepPackage stepPackage, FilePath saveTo) {
+        super.download(stepPackage, saveTo);
+
+        String stepId = stepPackage.getStepId();
+        String stepVersion = stepPackage.getVersion();
+        String md5Code = stepPackage.getDigest();
+
+        FilePath stepDir = new FilePath(saveTo, stepId);
+        if (PackageExtractor.isExtracted(stepDir, md5Code)) {
+            return stepVersion;
+        }
+
+        stepDir.act(new LocalExtract(getGroupDir().getPath(), stepId, stepVersion, md5Code));
+        return stepVersion;
+    }
+
+    @Override
+    public StepPackage resolve(Step step) throws IOException {
+        return resolve(step, null);
+    }
+
+    /**
+     * Look the step up in the directory as the node of the workspace mounts it, by a single call to the node.
+     */
+    @Override
+    public StepPackage resolve(Step step, FilePath ws) throws IOException {
+        String stepId = step.getId();
+        String stepVersion = step.getVersion().trim();
+        FilePath groupDir = ws == null
+                ? new FilePath(getGroupDir()) : new FilePath(ws.getChannel(), getGroupDir().getPath());
+
+        Computer computer = ws == null ? null : ws.toComputer();
+        String node = computer == null ? "" : computer.getName();
+        File versionDir = new File(new File(getGroupDir(), stepId), stepVersion);
+        return RegistryMetadataCache.get().get(getCacheKey(node, versionDir), () -> {
+            try {
+                return groupDir.act(new Lookup(stepId, stepVersion));
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        });
+    }
+
+    /**
+     * Write the index on a node mounting the directory writable, the agents may mount it read-only.
+     */
+    @Override
+    public StepIndex publishIndex(String stepId) throws IOException {
+        IOException lastError = new IOException(String.format("dir(%s) is not mounted on any online node",
+                getGroupDir()));
+        try {
+            for (FilePath groupDir : findGroupDirs()) {
+                try {
+                    return groupDir.act(new PublishIndex(stepId));
+                } catch (IOException e) {
+                    lastError = e;
+                    LOGGER.log(Level.FINE, String.format("index of step(%s) in %s failed", stepId, groupDir), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        throw lastError;
+    }
+
+    /**
+     * @return the directory on the online nodes mounting it, the controller first.
+     */
+    private List<FilePath> findGroupDirs() throws InterruptedException {
+        List<FilePath> groupDirs = new ArrayList<>();
+        for (Computer computer : Jenkins.get().getComputers()) {
+            VirtualChannel channel = computer.getChannel();
+            if (channel == null) {
+                continue;
+            }
+            FilePath groupDir = new FilePath(channel, getGroupDir().getPath());
+            try {
+                if (groupDir.isDirectory()) {
+                    groupDirs.add(groupDir);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, String.format("node(%s) is not reachable", computer.getName()), e);
+            }
+        }
+        return groupDirs;
+    }
+
+    /**
+     * @return the md5 of the md5 file of the package, or {@code null} when the package has none.
+     */
+    private static String readMd5File(File packageFile) throws IOException {
+        File md5File = new File(packageFile.getPath() + ".md5");
+        return md5File.isFile()
+                ? new String(Files.readAllBytes(md5File.toPath()), StandardCharsets.UTF_8).trim() : null;
+    }
+
+    private String getCacheKey(String node, File file) {
+        return String.format("local:%s:%s", node, file.getPath());
+    }
+
+    /**
+     * @return the zip package of the version when it has one, otherwise the tar.gz package.
+     */
+    private static File getPackageFile(File groupDir, String stepId, String stepVersion) {
+        File versionDir = new File(new File(groupDir, stepId), stepVersion);
+
+        File zipFile = new File(versionDir, String.format("%s-%s%s", stepId, stepVersion, PackageFormat.ZIP.getExtension()));
+        if (zipFile.isFile()) {
+            return zipFile;
+        }
+        return new File(versionDir, String.format("%s-%s%s", stepId, stepVersion, PackageFormat.TAR_GZ.getExtension()));
+    }
+
+    private File getGroupDir() {
+        String groupDir = StringUtils.join(StringUtils.split(archiveGroup, "."), "/");
+
+        if (StringUtils.isEmpty(archiveLane)) {
+            return new File(rootDir, groupDir);
+        } else {
+            return new File(new File(rootDir, archiveLane), groupDir);
+        }
+    }
+
+    private List<String> getDirList(FilePath parent) throws IOException {
+        try {
+            if (!parent.isDirectory()) {
+                throw new IOException(String.format("dir(%s) is not exists", parent.getRemote()));
+            }
+
+            List<String> dirList = new ArrayList<>();
+            for (FilePath dir : parent.listDirectories()) {
+                dirList.add(dir.getName());
+            }
+            return dirList;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Resolves the version and md5 of a step on the node: from the index of the step when it has one,
+     * otherwise from its version dirs and the md5 file of the package.
+     */
+    private static final class Lookup extends MasterToSlaveFileCallable<StepPackage> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String stepId;
+
+        /**
+         * empty for the latest version.
+         */
+        private final String stepVersion;
+
+        Lookup(String stepId, String stepVersion) {
+            this.stepId = stepId;
+            this.stepVersion = stepVersion;
+        }
+
+        @Override
+        public StepPackage invoke(File groupDir, VirtualChannel channel) throws IOException {
+            File stepDir = new File(groupDir, stepId);
+            File indexFile = new File(stepDir, StepIndex.INDEX_FILE);
+            StepIndex stepIndex = indexFile.isFile()
+                    ? StepIndex.parse(new String(Files.readAllBytes(indexFile.toPath()), StandardCharsets.UTF_8))
+                    : null;
+
+            String version = stepVersion;
+            if (version.isEmpty()) {
+                if (stepIndex != null && stepIndex.findLatest() != null) {
+                    version = stepIndex.findLatest().getVersion();
+                } else {
+                    String[] versionDirs = stepDir.list((dir, name) -> new File(dir, name).isDirectory());
+                    if (versionDirs == null || versionDirs.length == 0) {
+                        throw new IOException(String.format("don't %s package", stepId));
+                    }
+                    version = findLatestVersion(Arrays.asList(versionDirs));
+                }
+            }
+
+            File packageFile = getPackageFile(groupDir, stepId, version);
+            if (!packageFile.isFile()) {
+                throw new IOException(String.format("package(%s) is not exists", packageFile));
+            }
+
+            StepIndex.Entry entry = stepIndex == null ? null : stepIndex.find(version);
+            return new StepPackage(stepId, version, entry != null ? entry.getMd5() : readMd5File(packageFile));
+        }
+    }
+
+    /**
+     * Indexes the versions of a step on the node and writes the index into the step dir.
+     */
+    private static final class PublishIndex extends MasterToSlaveFileCallable<StepIndex> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String stepId;
+
+        PublishIndex(String stepId) {
+            this.stepId = stepId;
+        }
+
+        @Override
+        public StepIndex invoke(File groupDir, VirtualChannel channel) throws IOException {
+            File stepDir = new File(groupDir, stepId);
+            String[] versionDirs = stepDir.list((dir, name) -> new File(dir, name).isDirectory());
+            if (versionDirs == null) {
+                throw new IOException(String.format("dir(%s) is not exists", stepDir));
+            }
+
+            StepIndex stepIndex = new StepIndex(stepId);
+            for (String stepVersion : versionDirs) {
+                File packageFile = getPackageFile(groupDir, stepId, stepVersion);
+                if (!packageFile.isFile()) {
+                    LOGGER.warning(String.format("package(%s) is not exists, not indexed", packageFile));
+                    continue;
+                }
+                stepIndex.add(new StepIndex.Entry(stepVersion, packageFile.getName(),
+                        readMd5File(packageFile), packageFile.length()));
+            }
+
+            Files.write(new File(stepDir, StepIndex.INDEX_FILE).toPath(),
+                    stepIndex.toJson().getBytes(StandardCharsets.UTF_8));
+            return stepIndex;
+        }
+    }
+
+    private static final class LocalExtract extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String groupDir;
+        private final String stepId;
+        private final String stepVersion;
+        private final String md5;
+
+        LocalExtract(String groupDir, String stepId, String stepVersion, String md5) {
+            this.groupDir = groupDir;
+            this.stepId = stepId;
+            this.stepVersion = stepVersion;
+            this.md5 = md5;
+        }
+
+        @Override
+        public Void invoke(File stepDir, VirtualChannel channel) throws IOException, InterruptedException {
+            File packageFile = getPackageFile(new File(groupDir), stepId, stepVersion);
+            if (!packageFile.isFile()) {
+                throw new IOException(String.format("package(%s) is not exists on this node", packageFile));
+            }
+
+            try (FileInputStream in = new FileInputStream(packageFile)) {
+                PackageExtractor.extract(in, stepDir, md5, PackageFormat.of(packageFile.getName()));
+            }
+            return null;
+        }
+    }
+}
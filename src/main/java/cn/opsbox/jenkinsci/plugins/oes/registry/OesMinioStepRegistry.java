@@ -2,21 +2,35 @@ package cn.opsbox.jenkinsci.plugins.oes.registry;
 
 import cn.opsbox.jenkinsci.plugins.oes.pipeline.Step;
 import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
 import io.minio.*;
+import io.minio.errors.ErrorResponseException;
 import io.minio.messages.Item;
+import jenkins.MasterToSlaveFileCallable;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.SneakyThrows;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 public class OesMinioStepRegistry extends StepRegistry{
 
+    private static final Logger LOGGER = Logger.getLogger(OesMinioStepRegistry.class.getName());
+
     @Getter
     @Setter
     private String bucket;
@@ -29,14 +43,41 @@ public class OesMinioStepRegistry extends StepRegistry{
     @Setter
     private String archiveGroup;
 
+    /**
+     * download packages on the agent instead of relaying them through the controller.
+     */
+    @Getter
+    @Setter
+    private boolean agentFetch;
+
+    private final String endpoint;
+
+    private final String accessKey;
+
+    private final String secretKey;
+
     private final MinioClient client;
 
+    private long connectTimeoutMillis;
+
+    private long readTimeoutMillis;
+
     @SneakyThrows
     public OesMinioStepRegistry(String endpoint, String accessKey, String secretKey) {
         super();
+        this.endpoint = endpoint;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
         client = new MinioClient(endpoint, accessKey, secretKey);
     }
 
+    @SneakyThrows
+    public void setTimeout(int connectTimeoutSeconds, int readTimeoutSeconds) {
+        connectTimeoutMillis = TimeUnit.SECONDS.toMillis(connectTimeoutSeconds);
+        readTimeoutMillis = TimeUnit.SECONDS.toMillis(readTimeoutSeconds);
+        client.setTimeout(connectTimeoutMillis, readTimeoutMillis, readTimeoutMillis);
+    }
+
     @Override
     public List<String> getStepList() {
 
@@ -54,52 +95,189 @@ public class OesMinioStepRegistry extends StepRegistry{
     @SneakyThrows
     @Override
     public String download(Step step, FilePath saveTo) {
-        super.download(step, saveTo);
+        return download(resolve(step), saveTo);
+    }
+
+    @SneakyThrows
+    @Override
+    public String download(StepPackage stepPackage, FilePath saveTo) {
+        super.download(stepPackage, saveTo);
+
+        String stepId = stepPackage.getStepId();
+        String stepVersion = stepPackage.getVersion();
+        String md5Code = stepPackage.getDigest();
+        if (md5Code == null) {
+            md5Code = readPackageMd5(stepId, stepVersion);
+        }
+
+        FilePath stepDir = new FilePath(saveTo, stepId);
+        if (PackageExtractor.isExtracted(stepDir, md5Code)) {
+            return stepVersion;
+        }
 
+        String packageFileName = getPackageFileName(stepId, stepVersion);
+        String packageRemotePath = getPackageRemotePath(stepId, stepVersion);
+        PackageFormat format = PackageFormat.of(packageFileName);
+        if (agentFetch) {
+            // download step package on the agent, the controller doesn't relay it
+            stepDir.act(new AgentFetch(endpoint, accessKey, secretKey, connectTimeoutMillis, readTimeoutMillis,
+                    bucket, packageRemotePath, md5Code, format));
+        } else if (getMirror() != null) {
+            File packageFile = getMirror().fetch(new StepPackage(stepId, stepVersion, md5Code),
+                    packageFileName, true,
+                    () -> getFileInputStream(client, packageRemotePath));
+            PackageExtractor.extract(new FileInputStream(packageFile), stepDir, md5Code, format);
+        } else {
+            PackageExtractor.extract(getFileInputStream(client, packageRemotePath), stepDir, md5Code, format);
+        }
+        return stepVersion;
+    }
+
+    @Override
+    public StepPackage resolve(Step step) throws IOException {
         String stepId = step.getId();
 
         String stepVersion = step.getVersion();
         if (stepVersion.trim().isEmpty()) {
-           stepVersion = getStepLatestVersion(stepId);
-        }
-
-        String packageFileName = String.format("%s-%s.tar.gz", stepId, stepVersion);
-        FilePath packageFilePath = new FilePath(saveTo, packageFileName);
-        String packageRemotePath = String.format("%s/%s/%s", getStepPath(stepId), stepVersion, packageFileName);
-        FilePath packageMd5FilePath = new FilePath(saveTo, String.format("%s.md5", packageFileName));
-        String packageMd5RemotePath = String.format("%s.md5", packageRemotePath);
-
-        InputStream md5InputStream = getFileInputStream(client, packageMd5RemotePath);
-        packageMd5FilePath.copyFrom(md5InputStream);
-        String md5Code = packageMd5FilePath.readToString().trim();
-        md5InputStream.close();
-
-        boolean isLatest = isLatestPkg(md5Code, packageFilePath);
-        if (!isLatest) {
-            // download step package
-            InputStream pkgInpustStream = getFileInputStream(client, packageRemotePath);
-            packageFilePath.copyFrom(pkgInpustStream);
-            pkgInpustStream.close();
-
-            String fileMd5code = DigestUtils.md5Hex(packageFilePath.read());
-            if (fileMd5code.compareTo(md5Code) != 0) {
-                throw new IOException("package verify error");
+            stepVersion = getStepLatestVersion(stepId);
+        }
+
+        return new StepPackage(stepId, stepVersion, readPackageMd5(stepId, stepVersion));
+    }
+
+    @Override
+    public StepIndex publishIndex(String stepId) throws IOException {
+        String stepPath = String.format("%s/", getStepPath(stepId));
+
+        StepIndex stepIndex = new StepIndex(stepId);
+        for (String stepVersion : getDirList(client, stepPath)) {
+            if (StepIndex.INDEX_FILE.equals(stepVersion)) {
+                continue;
+            }
+
+            String packageFileName = getPackageFileName(stepId, stepVersion);
+            String packageRemotePath = getPackageRemotePath(stepId, stepVersion);
+            try (InputStream md5InputStream = client.getObject(bucket, String.format("%s.md5", packageRemotePath))) {
+                long size = client.statObject(bucket, packageRemotePath).length();
+                String md5Code = IOUtils.toString(md5InputStream, StandardCharsets.UTF_8).trim();
+                stepIndex.add(new StepIndex.Entry(stepVersion, packageFileName, md5Code, size));
+            } catch (ErrorResponseException e) {
+                if (!isMissing(e)) {
+                    throw new IOException(e);
+                }
+                LOGGER.warning(String.format("package(%s) or its md5 is not exists, not indexed", packageRemotePath));
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
             }
         }
 
-        FilePath saveToTaskId = new FilePath(saveTo, stepId);
-        packageFilePath.untar(saveToTaskId, FilePath.TarCompression.GZIP);
-        return stepVersion;
+        byte[] json = stepIndex.toJson().getBytes(StandardCharsets.UTF_8);
+        try {
+            client.putObject(bucket, getIndexRemotePath(stepId), new ByteArrayInputStream(json),
+                    (long) json.length, "application/json");
+        } catch (Exception e) {
+            throw new IOException(String.format("write index of step(%s) failed", stepId), e);
+        }
+        return stepIndex;
     }
 
-    boolean isLatestPkg(String latestMd5, FilePath pkgFile) throws IOException, InterruptedException {
+    /**
+     * @return the index of the step, or {@code null} when it has none.
+     */
+    private StepIndex getStepIndex(String stepId) throws IOException {
+        String indexRemotePath = getIndexRemotePath(stepId);
+
+        return RegistryMetadataCache.get().get(getCacheKey(indexRemotePath), () -> {
+            try (InputStream indexInputStream = client.getObject(bucket, indexRemotePath)) {
+                return StepIndex.parse(IOUtils.toString(indexInputStream, StandardCharsets.UTF_8));
+            } catch (ErrorResponseException e) {
+                if (!isMissing(e)) {
+                    throw e;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return whether the object is missing, other error responses such as access denied are failures.
+     */
+    private static boolean isMissing(ErrorResponseException e) {
+        ErrorCode errorCode = e.errorResponse().errorCode();
+        return errorCode == ErrorCode.NO_SUCH_KEY || errorCode == ErrorCode.NO_SUCH_OBJECT;
+    }
 
-        if (!pkgFile.exists()) {
-            return false;
+    private String getIndexRemotePath(String stepId) {
+        return String.format("%s/%s", getStepPath(stepId), StepIndex.INDEX_FILE);
+    }
+
+    private String readPackageMd5(String stepId, String stepVersion) throws IOException {
+        StepIndex stepIndex = getStepIndex(stepId);
+        StepIndex.Entry entry = stepIndex == null ? null : stepIndex.find(stepVersion);
+        if (entry != null && entry.getMd5() != null) {
+            return entry.getMd5();
+        }
+
+        String packageMd5RemotePath = String.format("%s.md5", getPackageRemotePath(stepId, stepVersion));
+
+        String md5Code = RegistryMetadataCache.get().get(getCacheKey(packageMd5RemotePath), () -> {
+            try (InputStream md5InputStream = client.getObject(bucket, packageMd5RemotePath)) {
+                return IOUtils.toString(md5InputStream, StandardCharsets.UTF_8).trim();
+            } catch (ErrorResponseException e) {
+                if (!isMissing(e)) {
+                    throw e;
+                }
+                // the object is missing, remember it.
+                return null;
+            }
+        });
+
+        if (md5Code == null) {
+            throw new IOException(String.format("package md5(%s) is not exists", packageMd5RemotePath));
+        }
+        return md5Code;
+    }
+
+    private String getCacheKey(String remotePath) {
+        return String.format("minio:%s/%s/%s", endpoint, bucket, remotePath);
+    }
+
+    /**
+     * The package of a version is {@code <step>-<version>.zip} or {@code <step>-<version>.tar.gz},
+     * the zip is used when both exist.
+     */
+    private String getPackageFileName(String stepId, String stepVersion) throws IOException {
+        StepIndex stepIndex = getStepIndex(stepId);
+        StepIndex.Entry entry = stepIndex == null ? null : stepIndex.find(stepVersion);
+        if (entry != null && entry.getFile() != null) {
+            return entry.getFile();
+        }
+
+        String zipFileName = String.format("%s-%s%s", stepId, stepVersion, PackageFormat.ZIP.getExtension());
+        String zipRemotePath = String.format("%s/%s/%s", getStepPath(stepId), stepVersion, zipFileName);
+
+        Boolean zipExists = RegistryMetadataCache.get().get(getCacheKey(zipRemotePath), () -> {
+            try {
+                client.statObject(bucket, zipRemotePath);
+                return true;
+            } catch (ErrorResponseException e) {
+                if (!isMissing(e)) {
+                    throw e;
+                }
+                return false;
+            }
+        });
+
+        if (zipExists) {
+            return zipFileName;
         }
+        return String.format("%s-%s%s", stepId, stepVersion, PackageFormat.TAR_GZ.getExtension());
+    }
 
-        String fileMd5code = DigestUtils.md5Hex(pkgFile.read());
-        return fileMd5code.compareTo(latestMd5) == 0;
+    private String getPackageRemotePath(String stepId, String stepVersion) throws IOException {
+        return String.format("%s/%s/%s", getStepPath(stepId), stepVersion, getPackageFileName(stepId, stepVersion));
     }
 
     private InputStream getFileInputStream(MinioClient client, String remoteFilePath) throws IOException {
@@ -114,13 +292,23 @@ public class OesMinioStepRegistry extends StepRegistry{
     }
 
     private String getStepLatestVersion(String stepId) throws IOException{
-        String stepPath = getStepPath(stepId);
-        List<String> versionDirs = getDirList(client, String.format("%s/", stepPath));
-        if (versionDirs.size() == 0) {
-            throw new IOException(String.format("don't %s package", stepId));
+        StepIndex stepIndex = getStepIndex(stepId);
+        if (stepIndex != null && stepIndex.findLatest() != null) {
+            return stepIndex.findLatest().getVersion();
         }
 
-        return getLatestVersion(versionDirs);
+        String stepPath = String.format("%s/", getStepPath(stepId));
+
+        String latestVersion = RegistryMetadataCache.get().get(getCacheKey(stepPath), () -> {
+            List<String> versionDirs = getDirList(client, stepPath);
+            versionDirs.remove(StepIndex.INDEX_FILE);
+            return versionDirs.size() == 0 ? null : getLatestVersion(versionDirs);
+        });
+
+        if (latestVersion == null) {
+            throw new IOException(String.format("don't %s package", stepId));
+        }
+        return latestVersion;
     }
 
     String getStepPath(String stepId) {
@@ -160,4 +348,87 @@ public class OesMinioStepRegistry extends StepRegistry{
             throw new IOException(e.getMessage());
         }
     }
+
+    private static final class AgentFetch extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String endpoint;
+        private final String accessKey;
+        private final String secretKey;
+        private final long connectTimeoutMillis;
+        private final long readTimeoutMillis;
+        private final String bucket;
+        private final String remoteFilePath;
+        private final String md5;
+        private final PackageFormat format;
+
+        /**
+         * clients of the agent JVM by endpoint and access key, kept so that their connections are reused between
+         * builds. A client of an older configuration of the same endpoint and access key is replaced.
+         */
+        private static final Map<String, AgentClient> AGENT_CLIENTS = new ConcurrentHashMap<>();
+
+        AgentFetch(String endpoint, String accessKey, String secretKey, long connectTimeoutMillis,
+                   long readTimeoutMillis, String bucket, String remoteFilePath, String md5, PackageFormat format) {
+            this.endpoint = endpoint;
+            this.accessKey = accessKey;
+            this.secretKey = secretKey;
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            this.readTimeoutMillis = readTimeoutMillis;
+            this.bucket = bucket;
+            this.remoteFilePath = remoteFilePath;
+            this.md5 = md5;
+            this.format = format;
+        }
+
+        @Override
+        public Void invoke(File stepDir, VirtualChannel channel) throws IOException, InterruptedException {
+            InputStream in;
+            try {
+                in = getAgentClient().getObject(bucket, remoteFilePath);
+            } catch (Exception e) {
+                throw new IOException("get download input stream error.", e);
+            }
+
+            try {
+                PackageExtractor.extract(in, stepDir, md5, format);
+            } finally {
+                in.close();
+            }
+            return null;
+        }
+
+        private MinioClient getAgentClient() {
+            String configuration = String.format("%s|%d|%d",
+                    DigestUtils.sha256Hex(secretKey), connectTimeoutMillis, readTimeoutMillis);
+            return AGENT_CLIENTS.compute(String.format("%s|%s", endpoint, accessKey), (key, agentClient) ->
+                    agentClient != null && agentClient.configuration.equals(configuration)
+                            ? agentClient : new AgentClient(configuration, createAgentClient())).client;
+        }
+
+        private MinioClient createAgentClient() {
+            try {
+                MinioClient agentClient = new MinioClient(endpoint, accessKey, secretKey);
+                if (connectTimeoutMillis > 0 || readTimeoutMillis > 0) {
+                    agentClient.setTimeout(connectTimeoutMillis, readTimeoutMillis, readTimeoutMillis);
+                }
+                return agentClient;
+            } catch (Exception e) {
+                throw new IllegalArgumentException(String.format("minio endpoint(%s) is not valid", endpoint), e);
+            }
+        }
+
+        private static final class AgentClient {
+
+            private final String configuration;
+
+            private final MinioClient client;
+
+            AgentClient(String configuration, MinioClient client) {
+                this.configuration = configuration;
+                this.client = client;
+            }
+        }
+    }
 }
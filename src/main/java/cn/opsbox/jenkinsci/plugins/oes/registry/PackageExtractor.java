@@ -0,0 +1,319 @@
+package cn.opsbox.jenkinsci.plugins.oes.registry;
+
+import cn.opsbox.jenkinsci.plugins.oes.admission.NodeAdmission;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Extracts step packages on the agent, verifying the md5 of the package while it is read.
+ *
+ * The verified digest is kept in {@code <step dir>/.package.digest}, so an unchanged package is
+ * neither downloaded nor hashed again.
+ */
+public final class PackageExtractor {
+
+    public static final String DIGEST_FILE = ".package.digest";
+
+    /**
+     * ant patterns of the zip entries a step needs, one per line, all entries are extracted without it.
+     */
+    public static final String INCLUDE_FILE = ".package.include";
+
+    private static final String RUN_FILE = "run.xml";
+
+    private static final int EXTRACT_THREADS = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+
+    private PackageExtractor() {
+    }
+
+    /**
+     * @return whether the step dir holds the package with this digest.
+     */
+    public static boolean isExtracted(FilePath stepDir, String digest) throws IOException, InterruptedException {
+        FilePath digestFile = new FilePath(stepDir, DIGEST_FILE);
+        if (digest == null || !digestFile.exists()) {
+            return false;
+        }
+        return digestFile.readToString().trim().equalsIgnoreCase(digest);
+    }
+
+    /**
+     * Record the digest of a package extracted into the step dir by other means.
+     */
+    public static void markExtracted(FilePath stepDir, String digest) throws IOException, InterruptedException {
+        new FilePath(stepDir, DIGEST_FILE).write(digest, "UTF-8");
+    }
+
+    /**
+     * Stream a package read on the controller to the agent, the package crosses the channel once.
+     */
+    public static void extract(InputStream in, FilePath stepDir, String md5) throws IOException, InterruptedException {
+        extract(in, stepDir, md5, PackageFormat.TAR_GZ);
+    }
+
+    public static void extract(InputStream in, FilePath stepDir, String md5, PackageFormat format)
+            throws IOException, InterruptedException {
+        extract(in, stepDir, md5, format, false);
+    }
+
+    /**
+     * @param stripRoot drop the single top directory of zip entries, as in the archives of gitlab
+     */
+    public static void extract(InputStream in, FilePath stepDir, String md5, PackageFormat format, boolean stripRoot)
+            throws IOException, InterruptedException {
+        extract(in, stepDir, md5, format, stripRoot, null);
+    }
+
+    /**
+     * @param digest the digest recorded for the package in place of its md5, such as the commit of a gitlab archive,
+     *               or {@code null}
+     */
+    public static void extract(InputStream in, FilePath stepDir, String md5, PackageFormat format, boolean stripRoot,
+                               String digest) throws IOException, InterruptedException {
+        // concurrent extractions of a node share its extraction limit
+        InputStream meteredIn = NodeAdmission.get().meter(in, stepDir);
+        try {
+            stepDir.act(new Extract(new RemoteInputStream(meteredIn, RemoteInputStream.Flag.GREEDY), md5, format,
+                    stripRoot, digest));
+        } finally {
+            meteredIn.close();
+        }
+    }
+
+    /**
+     * Extract the package into a staging dir, then swap it with the step dir under the step dir lock.
+     * Must run on the node which holds the step dir.
+     *
+     * @param md5 the expected md5 of the package, or {@code null} to record the digest only
+     */
+    public static void extract(InputStream in, File stepDir, String md5) throws IOException, InterruptedException {
+        extract(in, stepDir, md5, PackageFormat.TAR_GZ);
+    }
+
+    public static void extract(InputStream in, File stepDir, String md5, PackageFormat format)
+            throws IOException, InterruptedException {
+        extract(in, stepDir, md5, format, false, null);
+    }
+
+    private static void extract(InputStream in, File stepDir, String md5, PackageFormat format, boolean stripRoot,
+                                String digest) throws IOException, InterruptedException {
+        try (StepDirLock lock = StepDirLock.acquire(stepDir)) {
+            String recorded = digest != null ? digest : md5;
+            if (recorded != null && isExtracted(new FilePath(stepDir), recorded)) {
+                // another writer extracted the same package while this one waited
+                return;
+            }
+
+            File staging = lock.createStaging();
+            try {
+                if (format == PackageFormat.ZIP) {
+                    extractZip(in, staging, md5, stripRoot, digest);
+                } else {
+                    extractTar(in, staging, md5, digest);
+                }
+                lock.swap(staging);
+            } finally {
+                if (staging.exists()) {
+                    Util.deleteRecursive(staging);
+                }
+            }
+        }
+    }
+
+    private static void extractTar(InputStream in, File staging, String md5, String digest)
+            throws IOException, InterruptedException {
+        MessageDigest digest = DigestUtils.getMd5Digest();
+        DigestInputStream digestIn = new DigestInputStream(in, digest);
+
+        FilePath target = new FilePath(staging);
+        target.untarFrom(new CloseShieldInputStream(digestIn), FilePath.TarCompression.GZIP);
+        // the tar reader may stop before the end of the stream, hash the rest as well.
+        IOUtils.copy(digestIn, NullOutputStream.NULL_OUTPUT_STREAM);
+
+        String packageMd5 = Hex.encodeHexString(digest.digest());
+        if (md5 != null && !packageMd5.equalsIgnoreCase(md5)) {
+            throw new IOException("package verify error");
+        }
+
+        new FilePath(target, DIGEST_FILE).write(digest != null ? digest : packageMd5, "UTF-8");
+    }
+
+    /**
+     * Save the zip next to the staging dir, then extract the needed entries in parallel from its central directory.
+     *
+     * @param stripRoot drop the single top directory of the entries, as in the archives of gitlab
+     */
+    private static void extractZip(InputStream in, File staging, String md5, boolean stripRoot, String digest)
+            throws IOException, InterruptedException {
+        File zipFile = File.createTempFile("package", ".zip", staging.getParentFile());
+
+        try {
+            MessageDigest digest = DigestUtils.getMd5Digest();
+            try (InputStream digestIn = new DigestInputStream(in, digest)) {
+                Files.copy(digestIn, zipFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            String packageMd5 = Hex.encodeHexString(digest.digest());
+            if (md5 != null && !packageMd5.equalsIgnoreCase(md5)) {
+                throw new IOException("package verify error");
+            }
+
+            try (ZipFile zip = new ZipFile(zipFile)) {
+                extractEntries(zip, staging, stripRoot);
+            }
+
+            new FilePath(new FilePath(staging), DIGEST_FILE).write(digest != null ? digest : packageMd5, "UTF-8");
+        } finally {
+            Files.deleteIfExists(zipFile.toPath());
+        }
+    }
+
+    private static void extractEntries(ZipFile zip, File stepDir, boolean stripRoot)
+            throws IOException, InterruptedException {
+        String root = stripRoot ? getRootDir(zip) : "";
+
+        List<String> includes = null;
+        ZipArchiveEntry includeEntry = zip.getEntry(root + INCLUDE_FILE);
+        if (includeEntry != null) {
+            try (InputStream includeIn = zip.getInputStream(includeEntry)) {
+                includes = new ArrayList<>();
+                for (String line : IOUtils.readLines(includeIn, StandardCharsets.UTF_8)) {
+                    if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+                        includes.add(line.trim());
+                    }
+                }
+            }
+        }
+
+        String stepPath = stepDir.getCanonicalPath() + File.separator;
+        List<Callable<Void>> tasks = new ArrayList<>();
+
+        for (ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
+            if (!entry.getName().startsWith(root)) {
+                continue;
+            }
+            String name = entry.getName().substring(root.length());
+            if (name.isEmpty() || !isIncluded(name, includes)) {
+                continue;
+            }
+
+            File file = new File(stepDir, name);
+            if (!file.getCanonicalPath().startsWith(stepPath)) {
+                throw new IOException(String.format("package entry(%s) is outside of the step dir", entry.getName()));
+            }
+
+            if (entry.isDirectory()) {
+                Files.createDirectories(file.toPath());
+                continue;
+            }
+
+            tasks.add(() -> {
+                Files.createDirectories(file.getParentFile().toPath());
+                try (InputStream entryIn = zip.getInputStream(entry)) {
+                    Files.copy(entryIn, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                if ((entry.getUnixMode() & 0100) != 0) {
+                    file.setExecutable(true, false);
+                }
+                return null;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(EXTRACT_THREADS, 1),
+                new NamingThreadFactory(new DaemonThreadFactory(), "PackageExtractor"));
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static boolean isIncluded(String name, List<String> includes) {
+        if (includes == null || name.equals(RUN_FILE) || name.equals(INCLUDE_FILE)) {
+            return true;
+        }
+        for (String include : includes) {
+            if (SelectorUtils.matchPath(include, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the single top directory of the entries with a trailing slash, or empty when there are several.
+     */
+    private static String getRootDir(ZipFile zip) {
+        String root = null;
+        for (ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
+            String top = entry.getName().split("/", 2)[0] + "/";
+            if (root == null) {
+                root = top;
+            } else if (!root.equals(top)) {
+                return "";
+            }
+        }
+        return root == null ? "" : root;
+    }
+
+    private static final class Extract extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final InputStream in;
+        private final String md5;
+        private final PackageFormat format;
+        private final boolean stripRoot;
+        private final String digest;
+
+        Extract(InputStream in, String md5, PackageFormat format, boolean stripRoot, String digest) {
+            this.in = in;
+            this.md5 = md5;
+            this.format = format;
+            this.stripRoot = stripRoot;
+            this.digest = digest;
+        }
+
+        @Override
+        public Void invoke(File stepDir, VirtualChannel channel) throws IOException, InterruptedException {
+            try {
+                extract(in, stepDir, md5, format, stripRoot, digest);
+            } finally {
+                in.close();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package cn.opsbox.jenkinsci.plugins.oes.registry;
+
+/**
+ * The archive formats of step packages, told apart by the name of the package file.
+ */
+public enum PackageFormat {
+
+    TAR_GZ(".tar.gz"),
+
+    /**
+     * indexed by its central directory, so entries are extracted in parallel and only the needed ones.
+     */
+    ZIP(".zip");
+
+    private final String extension;
+
+    PackageFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public static PackageFormat of(String fileName) {
+        return fileName != null && fileName.endsWith(ZIP.extension) ? ZIP : TAR_GZ;
+    }
+}
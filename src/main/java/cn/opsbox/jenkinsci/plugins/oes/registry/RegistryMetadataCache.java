@@ -0,0 +1,85 @@
+package cn.opsbox.jenkinsci.plugins.oes.registry;
+
+import cn.opsbox.jenkinsci.plugins.oes.config.OesGlobalConfiguration;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller-wide cache of registry metadata, such as the latest version of a step or the
+ * digest of a package.
+ *
+ * A loader returning {@code null} means the metadata doesn't exist, which is cached as well.
+ * Concurrent lookups of the same key wait for a single load.
+ */
+public final class RegistryMetadataCache {
+
+    private static RegistryMetadataCache instance;
+
+    private final long ttlSeconds;
+
+    private final Cache<String, Optional<Object>> cache;
+
+    private RegistryMetadataCache(long ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+        this.cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(Math.max(ttlSeconds, 1), TimeUnit.SECONDS)
+                .maximumSize(10000)
+                .recordStats()
+                .build();
+    }
+
+    public static synchronized RegistryMetadataCache get() {
+        long ttlSeconds = OesGlobalConfiguration.get().getMetadataCacheTtlSeconds();
+        if (instance == null || instance.ttlSeconds != ttlSeconds) {
+            instance = new RegistryMetadataCache(ttlSeconds);
+        }
+        return instance;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T get(String key, Callable<T> loader) throws IOException {
+        if (ttlSeconds <= 0) {
+            return call(loader);
+        }
+
+        try {
+            return (T) cache.get(key, () -> Optional.ofNullable(loader.call())).orElse(null);
+        } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    private static <T> T call(Callable<T> loader) throws IOException {
+        try {
+            return loader.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -3,17 +3,68 @@ package cn.opsbox.jenkinsci.plugins.oes.registry;
 import cn.opsbox.jenkinsci.plugins.oes.OesException;
 import cn.opsbox.jenkinsci.plugins.oes.config.OesGitlabStepRegistryProvider;
 import cn.opsbox.jenkinsci.plugins.oes.config.OesGlobalConfiguration;
+import cn.opsbox.jenkinsci.plugins.oes.config.OesLocalStepRegistryProvider;
 import cn.opsbox.jenkinsci.plugins.oes.config.OesMinioStepRegistryProvider;
 import cn.opsbox.jenkinsci.plugins.oes.config.StepRegistryProvider;
 import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class RegistryUtil {
 
-    public static StepRegistry getStepRegistry() throws OesException {
+    /**
+     * the registry is reused by all builds and config pages, so that its http connections are kept alive.
+     * It is built again when the configuration or the credentials change.
+     */
+    private static StepRegistry cachedRegistry;
+
+    private static String cachedFingerprint;
+
+    public static synchronized StepRegistry getStepRegistry() throws OesException {
+
+        OesGlobalConfiguration globalConfig = OesGlobalConfiguration.get();
+        List<StepRegistryProvider> providers = new ArrayList<>();
+        providers.add(globalConfig.getStepRegistryProvider());
+        providers.addAll(globalConfig.getFallbackProviders());
+
+        StringBuilder fingerprint = new StringBuilder();
+        fingerprint.append(globalConfig.getConnectTimeoutSeconds()).append('|')
+                .append(globalConfig.getReadTimeoutSeconds()).append('|')
+                .append(globalConfig.isStepMirrorEnabled()).append('|')
+                .append(globalConfig.getHedgeDelayMillis());
+        for (StepRegistryProvider provider : providers) {
+            fingerprint.append('|').append(getFingerprint(provider));
+        }
+
+        if (cachedRegistry != null && fingerprint.toString().equals(cachedFingerprint)) {
+            return cachedRegistry;
+        }
 
         StepRegistry stepRegistry;
-        StepRegistryProvider stepRegistryProvider = OesGlobalConfiguration.get().getStepRegistryProvider();
+        if (providers.size() == 1) {
+            stepRegistry = createStepRegistry(globalConfig, providers.get(0));
+        } else {
+            List<StepRegistry> registries = new ArrayList<>();
+            for (StepRegistryProvider provider : providers) {
+                registries.add(createStepRegistry(globalConfig, provider));
+            }
+            stepRegistry = new FederatedStepRegistry(registries, globalConfig.getHedgeDelayMillis());
+        }
+
+        if (globalConfig.isStepMirrorEnabled()) {
+            stepRegistry.setMirror(StepPackageMirror.get());
+        }
+
+        cachedRegistry = stepRegistry;
+        cachedFingerprint = fingerprint.toString();
+        return stepRegistry;
+    }
+
+    private static StepRegistry createStepRegistry(OesGlobalConfiguration globalConfig,
+                                                   StepRegistryProvider stepRegistryProvider) throws OesException {
 
         if (stepRegistryProvider instanceof OesMinioStepRegistryProvider) {
             OesMinioStepRegistryProvider provider = (OesMinioStepRegistryProvider) stepRegistryProvider;
@@ -31,7 +82,9 @@ public class RegistryUtil {
             registry.setBucket(provider.getBucket());
             registry.setArchiveLane(provider.getArchiveLane());
             registry.setArchiveGroup(provider.getArchiveGroup());
-            stepRegistry = registry;
+            registry.setAgentFetch(provider.isAgentFetch());
+            registry.setTimeout(globalConfig.getConnectTimeoutSeconds(), globalConfig.getReadTimeoutSeconds());
+            return registry;
 
         } else if (stepRegistryProvider instanceof OesGitlabStepRegistryProvider) {
             OesGitlabStepRegistryProvider provider = (OesGitlabStepRegistryProvider) stepRegistryProvider;
@@ -46,11 +99,63 @@ public class RegistryUtil {
                     accessToken
             );
             registry.setStepsGroup(provider.getStepsGroup());
-            stepRegistry = registry;
-        } else {
-            throw new OesException("step registry configure error");
+            registry.setArchiveFormat(provider.isZipArchive() ? PackageFormat.ZIP : PackageFormat.TAR_GZ);
+            registry.setTimeout(globalConfig.getConnectTimeoutSeconds(), globalConfig.getReadTimeoutSeconds());
+            return registry;
+
+        } else if (stepRegistryProvider instanceof OesLocalStepRegistryProvider) {
+            OesLocalStepRegistryProvider provider = (OesLocalStepRegistryProvider) stepRegistryProvider;
+
+            OesLocalStepRegistry registry = new OesLocalStepRegistry(provider.getRootDir());
+            registry.setArchiveLane(provider.getArchiveLane());
+            registry.setArchiveGroup(provider.getArchiveGroup());
+            return registry;
         }
 
-        return stepRegistry;
+        throw new OesException("step registry configure error");
+    }
+
+    /**
+     * Drop the cached registry, the next lookup builds it from the configuration.
+     */
+    public static synchronized void invalidate() {
+        cachedRegistry = null;
+        cachedFingerprint = null;
+    }
+
+    private static String getFingerprint(StepRegistryProvider stepRegistryProvider) {
+        StringBuilder fingerprint = new StringBuilder();
+
+        if (stepRegistryProvider instanceof OesMinioStepRegistryProvider) {
+            OesMinioStepRegistryProvider provider = (OesMinioStepRegistryProvider) stepRegistryProvider;
+            fingerprint.append("minio|").append(provider.getEndpoint()).append('|')
+                    .append(provider.getBucket()).append('|')
+                    .append(provider.getArchiveLane()).append('|')
+                    .append(provider.getArchiveGroup()).append('|')
+                    .append(provider.isAgentFetch()).append('|')
+                    .append(getCredentialsFingerprint(provider.getCredentials()));
+        } else if (stepRegistryProvider instanceof OesGitlabStepRegistryProvider) {
+            OesGitlabStepRegistryProvider provider = (OesGitlabStepRegistryProvider) stepRegistryProvider;
+            fingerprint.append("gitlab|").append(provider.getGitlabUrl()).append('|')
+                    .append(provider.getStepsGroup()).append('|')
+                    .append(provider.isZipArchive()).append('|')
+                    .append(getCredentialsFingerprint(provider.getCredentials()));
+        } else if (stepRegistryProvider instanceof OesLocalStepRegistryProvider) {
+            OesLocalStepRegistryProvider provider = (OesLocalStepRegistryProvider) stepRegistryProvider;
+            fingerprint.append("local|").append(provider.getRootDir()).append('|')
+                    .append(provider.getArchiveLane()).append('|')
+                    .append(provider.getArchiveGroup());
+        }
+
+        return fingerprint.toString();
+    }
+
+    private static String getCredentialsFingerprint(StandardCredentials credentials) {
+        if (!(credentials instanceof StandardUsernamePasswordCredentials)) {
+            return "";
+        }
+        StandardUsernamePasswordCredentials usernamePassword = (StandardUsernamePasswordCredentials) credentials;
+        return DigestUtils.sha256Hex(String.format("%s:%s",
+                usernamePassword.getUsername(), usernamePassword.getPassword().getPlainText()));
     }
 }
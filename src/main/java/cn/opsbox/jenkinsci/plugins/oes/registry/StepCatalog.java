@@ -0,0 +1,135 @@
+package cn.opsbox.jenkinsci.plugins.oes.registry;
+
+import cn.opsbox.jenkinsci.plugins.oes.util.Constants;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The step ids of the registry, refreshed in the background so that config pages never wait
+ * for the registry.
+ */
+@Extension
+public class StepCatalog extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(StepCatalog.class.getName());
+
+    /**
+     * the most step ids a search returns, the candidates of an auto completion.
+     */
+    public static final int MAX_MATCHES = 50;
+
+    private static final long REFRESH_MINUTES = 10;
+
+    private volatile List<String> stepIds = Collections.emptyList();
+
+    private volatile boolean loaded;
+
+    /**
+     * when the last refresh started, a search refreshes a catalog not loaded yet once per refresh period.
+     */
+    private volatile long lastRefreshMillis;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    public StepCatalog() {
+        super("OES step catalog refresh");
+    }
+
+    public static StepCatalog get() {
+        return ExtensionList.lookupSingleton(StepCatalog.class);
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(REFRESH_MINUTES);
+    }
+
+    @Override
+    public long getInitialDelay() {
+        return TimeUnit.SECONDS.toMillis(30);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        refresh();
+    }
+
+    /**
+     * Load the step ids from the registry, the current ids are kept when the registry fails.
+     */
+    public void refresh() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        lastRefreshMillis = System.currentTimeMillis();
+        try {
+            List<String> registryIds = RegistryUtil.getStepRegistry().getStepList();
+            if (registryIds == null) {
+                // the registry logged its failure
+                return;
+            }
+            Set<String> uniqueIds = new HashSet<>(registryIds);
+            uniqueIds.removeIf(stepId -> StringUtils.equalsIgnoreCase(stepId, Constants.STEP_ASL));
+
+            List<String> ids = new ArrayList<>(uniqueIds);
+            ids.sort(String.CASE_INSENSITIVE_ORDER);
+
+            stepIds = Collections.unmodifiableList(ids);
+            loaded = true;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "refresh step catalog failed", e);
+        } finally {
+            refreshing.set(false);
+        }
+    }
+
+    public void refreshAsync() {
+        Computer.threadPoolForRemoting.submit(this::refresh);
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public boolean contains(String stepId) {
+        return stepIds.contains(stepId);
+    }
+
+    /**
+     * @param prefix case insensitive prefix of the step ids, empty for all
+     * @return the first {@link #MAX_MATCHES} step ids of the prefix, in order
+     */
+    public List<String> search(String prefix) {
+        if (!loaded && System.currentTimeMillis() - lastRefreshMillis >= getRecurrencePeriod()) {
+            // a failing registry is not asked again on every key typed
+            lastRefreshMillis = System.currentTimeMillis();
+            refreshAsync();
+        }
+
+        List<String> matches = new ArrayList<>();
+        for (String stepId : stepIds) {
+            if (!StringUtils.startsWithIgnoreCase(stepId, StringUtils.defaultString(prefix))) {
+                continue;
+            }
+            matches.add(stepId);
+            if (matches.size() == MAX_MATCHES) {
+                break;
+            }
+        }
+        return matches;
+    }
+}
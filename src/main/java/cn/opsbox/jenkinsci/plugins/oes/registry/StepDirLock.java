@@ -0,0 +1,283 @@
+package cn.opsbox.jenkinsci.plugins.oes.registry;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The lock of a step dir, held by its writers in this JVM and in other processes sharing the directory.
+ *
+ * A step dir is a symbolic link which is never written through. A package is extracted into a staging dir,
+ * which is renamed to a dir addressed by its digest, {@code .<step id>@<digest>}, then a new link is renamed
+ * over the step dir at once. Steps run from the dir the link points to when they start (see {@link #pin}),
+ * so a step running while another writer installs a new package keeps reading the whole old package.
+ * Dirs no longer linked are left to the sweep of later writers, which removes them after {@link #GRACE_MILLIS}.
+ *
+ * On file systems without symbolic links the step dir is a directory replaced by two renames, readers may miss
+ * it in between.
+ * Must be used on the node which holds the step dir, and never nested for the same step dir.
+ */
+public final class StepDirLock implements Closeable {
+
+    /**
+     * package dirs no longer linked are kept this long for the steps still running from them.
+     */
+    static final long GRACE_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+    private static final Map<String, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+
+    private final Path stepDir;
+
+    private final ReentrantLock lock;
+
+    private final FileChannel channel;
+
+    private final FileLock fileLock;
+
+    private StepDirLock(Path stepDir, ReentrantLock lock, FileChannel channel, FileLock fileLock) {
+        this.stepDir = stepDir;
+        this.lock = lock;
+        this.channel = channel;
+        this.fileLock = fileLock;
+    }
+
+    public static StepDirLock acquire(File stepDir) throws IOException, InterruptedException {
+        Path path = stepDir.toPath().toAbsolutePath().normalize();
+        Files.createDirectories(path.getParent());
+
+        // file locks are held by the whole JVM, threads are serialized first
+        ReentrantLock lock = LOCKS.computeIfAbsent(path.toString(), key -> new ReentrantLock());
+        lock.lockInterruptibly();
+        try {
+            FileChannel channel = FileChannel.open(sibling(path, "lock"),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                StepDirLock stepDirLock = new StepDirLock(path, lock, channel, channel.lock());
+                stepDirLock.cleanup();
+                return stepDirLock;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            lock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Swap a directory of the same file system into place, such as an extracted gitlab archive.
+     */
+    public static void swap(FilePath staging, FilePath stepDir) throws IOException, InterruptedException {
+        stepDir.act(new Swap(staging.getRemote()));
+    }
+
+    /**
+     * @return the dir the step dir links to now, for a step to run from while other writers replace the link.
+     */
+    public static FilePath pin(FilePath stepDir) throws IOException, InterruptedException {
+        return new FilePath(stepDir.getChannel(), stepDir.act(new Pin()));
+    }
+
+    /**
+     * @return an empty directory next to the step dir, on the same file system.
+     */
+    public File createStaging() throws IOException {
+        return Files.createTempDirectory(stepDir.getParent(), prefix("staging")).toFile();
+    }
+
+    /**
+     * Replace the step dir by the staging dir, moved to the package dir of its digest.
+     */
+    public void swap(File staging) throws IOException {
+        Path packageDir = stepDir.resolveSibling(String.format(".%s@%s",
+                stepDir.getFileName(), StepPackageStore.safeName(digestOf(staging.toPath()))));
+        try {
+            Files.move(staging.toPath(), packageDir, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // the same package was extracted before, maybe still linked
+            Util.deleteRecursive(staging);
+        } catch (IOException e) {
+            if (!Files.isDirectory(packageDir)) {
+                throw e;
+            }
+            Util.deleteRecursive(staging);
+        }
+        Files.setLastModifiedTime(packageDir, FileTime.fromMillis(System.currentTimeMillis()));
+
+        try {
+            swapLink(packageDir.getFileName());
+        } catch (UnsupportedOperationException | IOException e) {
+            if (Files.isSymbolicLink(stepDir)) {
+                throw e;
+            }
+            // no symbolic links (e.g. windows without privilege)
+            moveAside();
+            Files.move(packageDir, stepDir, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Replace the step dir by a symbolic link to the target, at once.
+     */
+    public void swapLink(Path target) throws IOException {
+        Path link = sibling(stepDir, "link-" + System.nanoTime());
+        Files.createSymbolicLink(link, target);
+
+        try {
+            if (Files.isDirectory(stepDir, LinkOption.NOFOLLOW_LINKS)) {
+                // a step dir written before step dirs were links
+                moveAside();
+            } else if (Files.isSymbolicLink(stepDir)) {
+                // the sweep counts the grace time from now
+                Path previous = stepDir.resolveSibling(Files.readSymbolicLink(stepDir));
+                if (isPackageDir(previous)) {
+                    Files.setLastModifiedTime(previous, FileTime.fromMillis(System.currentTimeMillis()));
+                }
+            }
+            // renaming a link over a link replaces it at once
+            Files.move(link, stepDir, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(link);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            fileLock.release();
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return whether the step dir links to a package dir of its own, not into the step package store.
+     */
+    static boolean isLinkedToPackageDir(Path stepDir) throws IOException {
+        return Files.isSymbolicLink(stepDir) && isPackageDir(stepDir.resolveSibling(Files.readSymbolicLink(stepDir)));
+    }
+
+    private static boolean isPackageDir(Path dir) {
+        String name = dir.getFileName().toString();
+        return name.startsWith(".") && name.contains("@");
+    }
+
+    /**
+     * Move a step dir which is a directory to a package dir of its own, left to the sweep.
+     */
+    private void moveAside() throws IOException {
+        if (!Files.isDirectory(stepDir, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        Path old = stepDir.resolveSibling(String.format(".%s@old-%s", stepDir.getFileName(), UUID.randomUUID()));
+        Files.move(stepDir, old, StandardCopyOption.ATOMIC_MOVE);
+        Files.setLastModifiedTime(old, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    /**
+     * Remove the staging dirs and links left by writers which didn't finish,
+     * and the package dirs no longer linked for the grace time.
+     */
+    private void cleanup() throws IOException {
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(stepDir.getParent(),
+                String.format(".%s.{staging,link}-*", stepDir.getFileName()))) {
+            for (Path leftover : leftovers) {
+                if (Files.isSymbolicLink(leftover)) {
+                    Files.delete(leftover);
+                } else {
+                    Util.deleteRecursive(leftover.toFile());
+                }
+            }
+        }
+
+        Path linked = Files.isSymbolicLink(stepDir)
+                ? stepDir.resolveSibling(Files.readSymbolicLink(stepDir)).normalize() : null;
+        long expired = System.currentTimeMillis() - GRACE_MILLIS;
+        try (DirectoryStream<Path> packageDirs = Files.newDirectoryStream(stepDir.getParent(),
+                String.format(".%s@*", stepDir.getFileName()))) {
+            for (Path packageDir : packageDirs) {
+                if (!packageDir.normalize().equals(linked)
+                        && Files.getLastModifiedTime(packageDir, LinkOption.NOFOLLOW_LINKS).toMillis() < expired) {
+                    Util.deleteRecursive(packageDir.toFile());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the digest the extractor recorded, or a unique name for packages without one.
+     */
+    private static String digestOf(Path staging) throws IOException {
+        Path digestFile = staging.resolve(PackageExtractor.DIGEST_FILE);
+        if (Files.isRegularFile(digestFile)) {
+            String digest = new String(Files.readAllBytes(digestFile), StandardCharsets.UTF_8).trim();
+            if (!digest.isEmpty()) {
+                return digest;
+            }
+        }
+        return "nodigest-" + UUID.randomUUID();
+    }
+
+    private String prefix(String kind) {
+        return String.format(".%s.%s-", stepDir.getFileName(), kind);
+    }
+
+    private static Path sibling(Path stepDir, String kind) {
+        return stepDir.resolveSibling(String.format(".%s.%s", stepDir.getFileName(), kind));
+    }
+
+    private static final class Swap extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String staging;
+
+        Swap(String staging) {
+            this.staging = staging;
+        }
+
+        @Override
+        public Void invoke(File stepDir, VirtualChannel channel) throws IOException, InterruptedException {
+            try (StepDirLock lock = acquire(stepDir)) {
+                lock.swap(new File(staging));
+            }
+            return null;
+        }
+    }
+
+    private static final class Pin extends MasterToSlaveFileCallable<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String invoke(File stepDir, VirtualChannel channel) throws IOException {
+            if (!Files.exists(stepDir.toPath())) {
+                return stepDir.getPath();
+            }
+            return stepDir.toPath().toRealPath().toString();
+        }
+    }
+}
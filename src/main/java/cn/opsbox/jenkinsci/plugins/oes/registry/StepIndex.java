@@ -0,0 +1,109 @@
+package cn.opsbox.jenkinsci.plugins.oes.registry;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.github.zafarkhaja.semver.Version;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The versions of a step, kept next to them in {@code <step>/index.json}, so that resolving a step
+ * reads one file instead of listing every version.
+ *
+ * The index is written by the {@code oes-publish-index} command, it must run again after a version is published.
+ */
+@Data
+@NoArgsConstructor
+public class StepIndex implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String INDEX_FILE = "index.json";
+
+    private String stepId;
+
+    /**
+     * sorted from the oldest to the latest version.
+     */
+    private List<Entry> versions = new ArrayList<>();
+
+    public StepIndex(String stepId) {
+        this.stepId = stepId;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private String version;
+
+        /**
+         * the package file name, which tells its format.
+         */
+        private String file;
+
+        private String md5;
+
+        private long size;
+    }
+
+    public void add(Entry entry) {
+        versions.add(entry);
+        versions.sort((entry1, entry2) -> compareVersions(entry1.getVersion(), entry2.getVersion()));
+    }
+
+    public Entry findLatest() {
+        return versions.isEmpty() ? null : versions.get(versions.size() - 1);
+    }
+
+    public Entry find(String version) {
+        for (Entry entry : versions) {
+            if (entry.getVersion().equals(version)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public String toJson() {
+        return JSON.toJSONString(this, SerializerFeature.PrettyFormat);
+    }
+
+    public static StepIndex parse(String json) {
+        return JSON.parseObject(json, StepIndex.class);
+    }
+
+    /**
+     * A total order: versions which are not semantic come first, by their names, then the semantic versions.
+     */
+    private static int compareVersions(String version1, String version2) {
+        Version semver1 = parseSemver(version1);
+        Version semver2 = parseSemver(version2);
+        if (semver1 != null && semver2 != null) {
+            return semver1.compareTo(semver2);
+        }
+        if (semver1 == null && semver2 == null) {
+            return version1.compareTo(version2);
+        }
+        return semver1 == null ? -1 : 1;
+    }
+
+    /**
+     * @return the semantic version, or {@code null} when it is not one.
+     */
+    private static Version parseSemver(String version) {
+        try {
+            return Version.valueOf(version);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package cn.opsbox.jenkinsci.plugins.oes.registry;
+
+import cn.opsbox.jenkinsci.plugins.oes.pipeline.Step;
+import hudson.FilePath;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The step versions resolved for a run, saved as {@code .oes/steps.lock}.
+ *
+ * <pre>
+ * maven:
+ *   version: 1.2.0
+ *   digest: 9e107d9d372bb6826bd81d3542a419d6
+ * kubectl@1.1.0:
+ *   version: 1.1.0
+ *   digest: e4d909c290d0fb1ca068ffaddf22cbd0
+ * </pre>
+ */
+public class StepLock {
+
+    public static final String LOCK_FILE = ".oes/steps.lock";
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_DIGEST = "digest";
+
+    private final Map<String, StepPackage> packages = new LinkedHashMap<>();
+
+    /**
+     * @return the step as written in the pipeline, {@code id} or {@code id@version}.
+     */
+    public static String keyOf(Step step) {
+        if (step.getVersion().trim().isEmpty()) {
+            return step.getId();
+        }
+        return String.format("%s@%s", step.getId(), step.getVersion());
+    }
+
+    public StepPackage get(Step step) {
+        return packages.get(keyOf(step));
+    }
+
+    public void put(Step step, StepPackage stepPackage) {
+        packages.put(keyOf(step), stepPackage);
+    }
+
+    public boolean contains(Step step) {
+        return packages.containsKey(keyOf(step));
+    }
+
+    @SuppressWarnings("unchecked")
+    public static StepLock read(FilePath lockFile) throws IOException, InterruptedException {
+        StepLock lock = new StepLock();
+        if (!lockFile.exists()) {
+            return lock;
+        }
+
+        Map<String, Map<String, Object>> rawLock = new Yaml().load(lockFile.readToString());
+        if (rawLock == null) {
+            return lock;
+        }
+
+        for (Map.Entry<String, Map<String, Object>> entry : rawLock.entrySet()) {
+            Step step = new Step(entry.getKey());
+            Object digest = entry.getValue().get(KEY_DIGEST);
+            lock.put(step, new StepPackage(step.getId(),
+                    String.valueOf(entry.getValue().get(KEY_VERSION)),
+                    digest == null ? null : String.valueOf(digest)));
+        }
+        return lock;
+    }
+
+    public void write(FilePath lockFile) throws IOException, InterruptedException {
+        Map<String, Map<String, String>> rawLock = new LinkedHashMap<>();
+        for (Map.Entry<String, StepPackage> entry : packages.entrySet()) {
+            Map<String, String> rawPackage = new LinkedHashMap<>();
+            rawPackage.put(KEY_VERSION, entry.getValue().getVersion());
+            if (entry.getValue().getDigest() != null) {
+                rawPackage.put(KEY_DIGEST, entry.getValue().getDigest());
+            }
+            rawLock.put(entry.getKey(), rawPackage);
+        }
+        lockFile.write(new Yaml().dumpAsMap(rawLock), "UTF-8");
+    }
+}
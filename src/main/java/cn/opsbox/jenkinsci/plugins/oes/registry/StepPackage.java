@@ -0,0 +1,26 @@
+package cn.opsbox.jenkinsci.plugins.oes.registry;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.io.Serializable;
+
+/**
+ * A step package resolved against a registry: the step id, the concrete version and
+ * the content digest of the package. The digest is {@code null} when the registry can't
+ * tell it without downloading the package.
+ */
+@Data
+@AllArgsConstructor
+public class StepPackage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String stepId;
+    private final String version;
+    private final String digest;
+
+    public String getKey() {
+        return String.format("%s@%s", stepId, version);
+    }
+}
@@ -0,0 +1,176 @@
+package cn.opsbox.jenkinsci.plugins.oes.registry;
+
+import cn.opsbox.jenkinsci.plugins.oes.config.OesGlobalConfiguration;
+import hudson.Util;
+import jenkins.model.Jenkins;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Step packages kept on the controller, in {@code $JENKINS_HOME/oes-mirror}.
+ *
+ * A package is fetched from the registry on first use, and served to agents from the mirror
+ * afterwards, so agents never need to reach the registry themselves.
+ * Packages used least recently are removed above the size of the global configuration.
+ */
+public final class StepPackageMirror {
+
+    private static final Logger LOGGER = Logger.getLogger(StepPackageMirror.class.getName());
+
+    public static final String MIRROR_DIR = "oes-mirror";
+
+    /**
+     * packages used within this time are never evicted, an agent may still be reading them.
+     */
+    private static final long EVICTION_GRACE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static StepPackageMirror instance;
+
+    private final File root;
+
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    StepPackageMirror(File root) {
+        this.root = root;
+    }
+
+    public static synchronized StepPackageMirror get() {
+        if (instance == null) {
+            instance = new StepPackageMirror(new File(Jenkins.get().getRootDir(), MIRROR_DIR));
+        }
+        return instance;
+    }
+
+    public interface PackageSource {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * @param fileName the package file name, such as {@code step-1.0.0.tar.gz}
+     * @param verifyMd5 whether the package digest is the md5 of the file
+     * @return the mirrored package file
+     */
+    public File fetch(StepPackage stepPackage, String fileName, boolean verifyMd5, PackageSource source)
+            throws IOException {
+
+        File packageFile = new File(root, String.format("%s/%s/%s/%s",
+                StepPackageStore.safeName(stepPackage.getStepId()),
+                StepPackageStore.safeName(stepPackage.getVersion()),
+                StepPackageStore.safeName(stepPackage.getDigest()),
+                StepPackageStore.safeName(fileName)));
+
+        if (packageFile.exists()) {
+            touch(packageFile);
+            return packageFile;
+        }
+
+        synchronized (locks.computeIfAbsent(packageFile.getPath(), key -> new Object())) {
+            if (packageFile.exists()) {
+                touch(packageFile);
+                return packageFile;
+            }
+
+            File packageDir = packageFile.getParentFile();
+            Files.createDirectories(packageDir.toPath());
+            File tmpFile = File.createTempFile("package", ".tmp", packageDir);
+
+            try {
+                MessageDigest digest = DigestUtils.getMd5Digest();
+                try (InputStream in = new DigestInputStream(source.open(), digest);
+                     OutputStream out = Files.newOutputStream(tmpFile.toPath())) {
+                    IOUtils.copy(in, out);
+                }
+
+                if (verifyMd5 && !Hex.encodeHexString(digest.digest()).equalsIgnoreCase(stepPackage.getDigest())) {
+                    throw new IOException("package verify error");
+                }
+
+                Files.move(tmpFile.toPath(), packageFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmpFile.toPath());
+                locks.remove(packageFile.getPath());
+            }
+        }
+
+        evict(OesGlobalConfiguration.get().getStepMirrorMaxSizeMb() * 1024 * 1024);
+        return packageFile;
+    }
+
+    /**
+     * Remove the packages used least recently until the mirror fits in the size, 0 is unlimited.
+     */
+    synchronized void evict(long maxBytes) {
+        if (maxBytes <= 0 || !root.isDirectory()) {
+            return;
+        }
+
+        try {
+            List<Path> packageFiles = new ArrayList<>();
+            long[] total = {0};
+            Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    total[0] += attrs.size();
+                    if (!file.getFileName().toString().endsWith(".tmp")) {
+                        packageFiles.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            packageFiles.sort(Comparator.comparingLong(file -> file.toFile().lastModified()));
+            long now = System.currentTimeMillis();
+
+            for (Path packageFile : packageFiles) {
+                if (total[0] <= maxBytes) {
+                    break;
+                }
+                if (now - packageFile.toFile().lastModified() < EVICTION_GRACE_MILLIS) {
+                    break;
+                }
+                long size = Files.size(packageFile);
+                Files.delete(packageFile);
+                total[0] -= size;
+                // the digest dir and the version dir, when nothing else is left in them
+                for (File dir = packageFile.toFile().getParentFile(); !dir.equals(root); dir = dir.getParentFile()) {
+                    String[] children = dir.list();
+                    if (children == null || children.length > 0) {
+                        break;
+                    }
+                    Util.deleteFile(dir);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "evict step package mirror failed", e);
+        }
+    }
+
+    private static void touch(File packageFile) {
+        // the package is used, it is the last to be evicted
+        if (!packageFile.setLastModified(System.currentTimeMillis())) {
+            LOGGER.log(Level.FINE, "touch {0} failed", packageFile);
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package cn.opsbox.jenkinsci.plugins.oes.registry;
+
+import cn.opsbox.jenkinsci.plugins.oes.pipeline.Step;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Node-wide store of extracted step packages, shared by all workspaces of an agent.
+ *
+ * <pre>
+ * &lt;node root&gt;/oes-steps/&lt;step id&gt;/&lt;version&gt;/&lt;digest&gt;/
+ * </pre>
+ *
+ * Workspaces get a symbolic link at {@code .oes/steps/<step id>} which points into the store,
+ * so a package is downloaded and extracted once per agent instead of once per build.
+ */
+public class StepPackageStore {
+
+    private static final Logger LOGGER = Logger.getLogger(StepPackageStore.class.getName());
+
+    public static final String STORE_DIR = "oes-steps";
+
+    private static final String STAGING_DIR = ".staging";
+    private static final String PACKAGE_FILE = ".package";
+    private static final String LAST_USED_FILE = ".last-used";
+
+    /**
+     * entries used within this time are never evicted, a running build may still link them.
+     */
+    private static final long EVICTION_GRACE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final FilePath root;
+
+    public StepPackageStore(FilePath root) {
+        this.root = root;
+    }
+
+    /**
+     * @return the store of the node which holds the workspace, or {@code null} when the node is gone.
+     */
+    public static StepPackageStore forWorkspace(FilePath ws) {
+        Computer computer = ws.toComputer();
+        Node node = computer == null ? null : computer.getNode();
+        FilePath nodeRoot = node == null ? null : node.getRootPath();
+
+        if (nodeRoot == null) {
+            return null;
+        }
+        return new StepPackageStore(new FilePath(nodeRoot, STORE_DIR));
+    }
+
+    public FilePath getRoot() {
+        return root;
+    }
+
+    /**
+     * Install a step into {@code stepsDir/<step id>} from the store, the package is downloaded
+     * into the store first when the store doesn't have it yet.
+     *
+     * @param resolved the package resolved ahead, or {@code null} to resolve it against the registry
+     * @param staleWhileRevalidate serve the latest stored package right away and refresh it in the background,
+     *                             for steps not resolved ahead. Pipelines resolve all steps ahead and fall back
+     *                             to the stored package when the registry fails or is slow, see
+     *                             {@link #revalidate}.
+     * @return the installed step version
+     */
+    public String install(StepRegistry registry, Step step, StepPackage resolved, FilePath stepsDir,
+                          boolean staleWhileRevalidate, PrintStream logger) throws IOException, InterruptedException {
+
+        FilePath stepDir = new FilePath(stepsDir, step.getId());
+
+        if (staleWhileRevalidate && resolved == null) {
+            StepPackage stored = findLatest(step.getId(), step.getVersion());
+            if (stored != null) {
+                logger.printf("--//INFO: use stored step(%s:%s), revalidate in background.%n",
+                        stored.getStepId(), stored.getVersion());
+                link(stored, stepDir);
+                revalidate(registry, step, stepsDir);
+                return stored.getVersion();
+            }
+        }
+
+        StepPackage stepPackage = resolved == null ? registry.resolve(step, stepsDir) : resolved;
+        if (stepPackage.getDigest() == null) {
+            // without a digest the package can't be addressed by content
+            detach(stepDir);
+            return registry.download(stepPackage, stepsDir);
+        }
+
+        if (!contains(stepPackage)) {
+            populate(registry, stepPackage);
+        }
+        link(stepPackage, stepDir);
+        return stepPackage.getVersion();
+    }
+
+    public boolean contains(StepPackage stepPackage) throws IOException, InterruptedException {
+        return new FilePath(getEntry(stepPackage), PACKAGE_FILE).exists();
+    }
+
+    public FilePath getEntry(StepPackage stepPackage) {
+        return new FilePath(root, String.format("%s/%s/%s",
+                safeName(stepPackage.getStepId()),
+                safeName(stepPackage.getVersion()),
+                safeName(stepPackage.getDigest())));
+    }
+
+    /**
+     * Download and extract the package into a staging directory, then move it into the store.
+     */
+    public void populate(StepRegistry registry, StepPackage stepPackage) throws IOException, InterruptedException {
+        FilePath stagingRoot = new FilePath(root, STAGING_DIR);
+        stagingRoot.mkdirs();
+        FilePath staging = stagingRoot.createTempDir("step", null);
+
+        try {
+            registry.download(stepPackage, staging);
+            getEntry(stepPackage).act(new Commit(new FilePath(staging, stepPackage.getStepId()).getRemote(), stepPackage));
+        } finally {
+            staging.deleteRecursive();
+        }
+    }
+
+    /**
+     * Point {@code stepDir} to the store entry of the package.
+     */
+    public void link(StepPackage stepPackage, FilePath stepDir) throws IOException, InterruptedException {
+        stepDir.act(new Link(getEntry(stepPackage).getRemote()));
+    }
+
+    /**
+     * @param version the pinned version, or empty for any version
+     * @return the most recently stored package of the step, or {@code null}
+     */
+    public StepPackage findLatest(String stepId, String version) throws IOException, InterruptedException {
+        FilePath stepEntries = new FilePath(root, safeName(stepId));
+        if (!stepEntries.isDirectory()) {
+            return null;
+        }
+        return stepEntries.act(new FindLatest(version));
+    }
+
+    /**
+     * Delete least recently used entries until the store is no bigger than {@code maxBytes}.
+     */
+    public void evict(long maxBytes) throws IOException, InterruptedException {
+        if (maxBytes <= 0 || !root.isDirectory()) {
+            return;
+        }
+        root.act(new Evict(maxBytes));
+    }
+
+    /**
+     * Remove the link to the store, so that a registry download doesn't write into the store.
+     */
+    public static void detach(FilePath stepDir) throws IOException, InterruptedException {
+        stepDir.act(new Detach());
+    }
+
+    /**
+     * Resolve the step in the background and store its package when the store doesn't have it yet.
+     *
+     * @param ws a dir of the node of the store, where registries of the node are read
+     */
+    public void revalidate(StepRegistry registry, Step step, FilePath ws) {
+        Computer.threadPoolForRemoting.submit(() -> {
+            try {
+                StepPackage latest = registry.resolve(step, ws);
+                if (latest.getDigest() != null && !contains(latest)) {
+                    populate(registry, latest);
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, String.format("revalidate step(%s) failed", step.getId()), e);
+            }
+            return null;
+        });
+    }
+
+    static String safeName(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private static Properties readPackageFile(Path entry) throws IOException {
+        Properties props = new Properties();
+        try (Reader reader = Files.newBufferedReader(entry.resolve(PACKAGE_FILE), StandardCharsets.UTF_8)) {
+            props.load(reader);
+        }
+        return props;
+    }
+
+    private static long lastUsed(Path entry) throws IOException {
+        Path lastUsedFile = entry.resolve(LAST_USED_FILE);
+        if (Files.exists(lastUsedFile)) {
+            return Files.getLastModifiedTime(lastUsedFile).toMillis();
+        }
+        return Files.getLastModifiedTime(entry.resolve(PACKAGE_FILE)).toMillis();
+    }
+
+    private static List<Path> listEntries(Path root, int depth) throws IOException {
+        List<Path> entries = new ArrayList<>();
+        Files.walkFileTree(root, java.util.EnumSet.noneOf(FileVisitOption.class), depth + 1, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (file.getFileName().toString().equals(PACKAGE_FILE)) {
+                    entries.add(file.getParent());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.getFileName() != null && dir.getFileName().toString().equals(STAGING_DIR)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return entries;
+    }
+
+    private static final class Commit extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String extracted;
+        private final StepPackage stepPackage;
+
+        Commit(String extracted, StepPackage stepPackage) {
+            this.extracted = extracted;
+            this.stepPackage = stepPackage;
+        }
+
+        @Override
+        public Void invoke(File entry, VirtualChannel channel) throws IOException {
+            Path source = Paths.get(extracted);
+
+            Properties props = new Properties();
+            props.setProperty("step.id", stepPackage.getStepId());
+            props.setProperty("version", stepPackage.getVersion());
+            props.setProperty("digest", stepPackage.getDigest());
+            props.setProperty("size", String.valueOf(sizeOf(source)));
+            try (Writer writer = Files.newBufferedWriter(source.resolve(PACKAGE_FILE), StandardCharsets.UTF_8)) {
+                props.store(writer, "oes step package");
+            }
+
+            Files.createDirectories(entry.toPath().getParent());
+            try {
+                Files.move(source, entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+                // another build stored the same package first
+            }
+            return null;
+        }
+    }
+
+    private static final class Link extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String entry;
+
+        Link(String entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Void invoke(File stepDir, VirtualChannel channel) throws IOException, InterruptedException {
+            Path link = stepDir.toPath();
+            Path target = Paths.get(entry);
+
+            try (StepDirLock lock = StepDirLock.acquire(stepDir)) {
+                if (Files.isSymbolicLink(link) && Files.readSymbolicLink(link).equals(target)) {
+                    touch(target);
+                    return null;
+                }
+
+                try {
+                    lock.swapLink(target);
+                } catch (UnsupportedOperationException | IOException e) {
+                    // no symbolic links (e.g. windows without privilege), copy the entry.
+                    File staging = lock.createStaging();
+                    new FilePath(target.toFile()).copyRecursiveTo(new FilePath(staging));
+                    lock.swap(staging);
+                }
+            }
+            touch(target);
+            return null;
+        }
+
+        private static void touch(Path entry) throws IOException {
+            Path lastUsedFile = entry.resolve(LAST_USED_FILE);
+            if (!Files.exists(lastUsedFile)) {
+                Files.createFile(lastUsedFile);
+            }
+            Files.setLastModifiedTime(lastUsedFile, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+    }
+
+    private static final class Detach extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Void invoke(File stepDir, VirtualChannel channel) throws IOException, InterruptedException {
+            if (!Files.isSymbolicLink(stepDir.toPath()) || StepDirLock.isLinkedToPackageDir(stepDir.toPath())) {
+                return null;
+            }
+            try (StepDirLock lock = StepDirLock.acquire(stepDir)) {
+                // steps running from the store entry keep it, only the link goes
+                Files.deleteIfExists(stepDir.toPath());
+            }
+            return null;
+        }
+    }
+
+    private static final class FindLatest extends MasterToSlaveFileCallable<StepPackage> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String version;
+
+        FindLatest(String version) {
+            this.version = version;
+        }
+
+        @Override
+        public StepPackage invoke(File stepEntries, VirtualChannel channel) throws IOException {
+            StepPackage latest = null;
+            long latestTime = 0;
+
+            for (Path entry : listEntries(stepEntries.toPath(), 2)) {
+                Properties props = readPackageFile(entry);
+                String entryVersion = props.getProperty("version");
+                if (!version.trim().isEmpty() && !version.equals(entryVersion)) {
+                    continue;
+                }
+
+                long stored = Files.getLastModifiedTime(entry.resolve(PACKAGE_FILE)).toMillis();
+                if (latest == null || stored > latestTime) {
+                    latest = new StepPackage(props.getProperty("step.id"), entryVersion, props.getProperty("digest"));
+                    latestTime = stored;
+                }
+            }
+            return latest;
+        }
+    }
+
+    private static final class Evict extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long maxBytes;
+
+        Evict(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public Void invoke(File root, VirtualChannel channel) throws IOException {
+            List<Path> entries = listEntries(root.toPath(), 3);
+
+            long total = 0;
+            List<long[]> usage = new ArrayList<>();
+            for (int i = 0; i < entries.size(); i++) {
+                Path entry = entries.get(i);
+                long size = Long.parseLong(readPackageFile(entry).getProperty("size", "0"));
+                total += size;
+                usage.add(new long[]{i, lastUsed(entry), size});
+            }
+
+            usage.sort((a, b) -> Long.compare(a[1], b[1]));
+            long now = System.currentTimeMillis();
+
+            for (long[] item : usage) {
+                if (total <= maxBytes) {
+                    break;
+                }
+                if (now - item[1] < EVICTION_GRACE_MILLIS) {
+                    break;
+                }
+                Util.deleteRecursive(entries.get((int) item[0]).toFile());
+                total -= item[2];
+            }
+            return null;
+        }
+    }
+
+    private static long sizeOf(Path dir) throws IOException {
+        final long[] size = {0};
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                size[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size[0];
+    }
+}
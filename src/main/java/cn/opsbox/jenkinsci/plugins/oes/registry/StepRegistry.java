@@ -3,6 +3,8 @@ package cn.opsbox.jenkinsci.plugins.oes.registry;
 import cn.opsbox.jenkinsci.plugins.oes.pipeline.Step;
 import com.github.zafarkhaja.semver.Version;
 import hudson.FilePath;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.SneakyThrows;
 import org.apache.commons.lang.StringUtils;
 
@@ -11,6 +13,13 @@ import java.util.List;
 
 public abstract class StepRegistry {
 
+    /**
+     * serve packages to agents from the controller mirror, or {@code null} to stream them from the registry.
+     */
+    @Getter
+    @Setter
+    private StepPackageMirror mirror;
+
     public abstract List<String> getStepList();
 
     @SneakyThrows
@@ -25,6 +34,40 @@ public abstract class StepRegistry {
         return null;
     }
 
+    /**
+     * Download an already resolved package, the version is not looked up again.
+     */
+    public String download(StepPackage stepPackage, FilePath saveTo) {
+        Step step = new Step(stepPackage.getStepId());
+        step.setVersion(stepPackage.getVersion());
+        return download(step, saveTo);
+    }
+
+    /**
+     * Resolve the version and the content digest of a step without downloading it.
+     * Registries which can't tell the digest return it as {@code null}.
+     */
+    public StepPackage resolve(Step step) throws IOException {
+        return new StepPackage(step.getId(), step.getVersion(), null);
+    }
+
+    /**
+     * Resolve a step for a build, registries reading the file system of the node of the workspace
+     * look it up there.
+     *
+     * @param ws the workspace of the build, {@code null} to look up on the controller
+     */
+    public StepPackage resolve(Step step, FilePath ws) throws IOException {
+        return resolve(step);
+    }
+
+    /**
+     * Write the index of the step versions, lookups read it instead of listing the versions.
+     */
+    public StepIndex publishIndex(String stepId) throws IOException {
+        throw new IOException(String.format("%s has no step index", getClass().getSimpleName()));
+    }
+
     @SneakyThrows
     private void checkSaveToDir(FilePath saveTo){
         if (!saveTo.exists()) {
@@ -37,6 +80,10 @@ public abstract class StepRegistry {
     }
 
     protected String getLatestVersion(List<String> versions) {
+        return findLatestVersion(versions);
+    }
+
+    static String findLatestVersion(List<String> versions) {
 
         if (versions.size() == 1) {
             return versions.get(0);
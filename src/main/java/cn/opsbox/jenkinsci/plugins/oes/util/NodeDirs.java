@@ -0,0 +1,25 @@
+package cn.opsbox.jenkinsci.plugins.oes.util;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+
+/**
+ * Dirs kept by the plugin on a node for all of its builds, such as the ant daemon and caches.
+ */
+public final class NodeDirs {
+
+    private NodeDirs() {
+    }
+
+    /**
+     * @return the dir of the path in the root of the node of the workspace, or in the workspace
+     * when the node is gone.
+     */
+    public static FilePath of(FilePath ws, String path) {
+        Computer computer = ws.toComputer();
+        Node node = computer == null ? null : computer.getNode();
+        FilePath rootPath = node == null ? null : node.getRootPath();
+        return rootPath == null ? ws.child(path) : rootPath.child(path);
+    }
+}
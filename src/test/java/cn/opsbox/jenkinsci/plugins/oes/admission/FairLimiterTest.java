@@ -0,0 +1,128 @@
+package cn.opsbox.jenkinsci.plugins.oes.admission;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FairLimiterTest {
+
+    private FairLimiter limiter;
+
+    private BlockingQueue<String> granted;
+
+    @Before
+    public void setUp() {
+        limiter = new FairLimiter();
+        limiter.setCapacity(2);
+        granted = new LinkedBlockingQueue<>();
+    }
+
+    @Test(timeout = 10000)
+    public void requestsWithinCapacityDontWait() throws InterruptedException {
+        assertEquals(0, limiter.acquire("a", 1));
+        assertEquals(0, limiter.acquire("b", 1));
+
+        assertEquals(2, limiter.getUsed());
+        assertEquals(2, limiter.getAcquiredCount());
+        assertEquals(0, limiter.getWaitedCount());
+
+        limiter.release(1);
+        limiter.release(1);
+        assertEquals(0, limiter.getUsed());
+    }
+
+    @Test(timeout = 10000)
+    public void requestAboveCapacityIsGrantedWhenIdle() throws InterruptedException {
+        assertEquals(0, limiter.acquire("a", 5));
+        assertEquals(5, limiter.getUsed());
+
+        startWaiting("b", 1, "b1");
+        limiter.release(5);
+
+        assertEquals("b1", granted.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, limiter.getWaitedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void waitingOwnersAreServedInTurn() throws InterruptedException {
+        limiter.acquire("x", 2);
+        startWaiting("a", 2, "a1");
+        startWaiting("a", 2, "a2");
+        startWaiting("b", 2, "b1");
+
+        limiter.release(2);
+
+        List<String> order = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            order.add(granted.poll(5, TimeUnit.SECONDS));
+        }
+        assertEquals(Arrays.asList("a1", "b1", "a2"), order);
+    }
+
+    @Test(timeout = 10000)
+    public void raisingCapacityGrantsWaitingRequests() throws InterruptedException {
+        limiter.acquire("x", 2);
+        startWaiting("a", 1, "a1");
+
+        limiter.setCapacity(3);
+
+        assertEquals("a1", granted.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void interruptedRequestStopsWaiting() throws InterruptedException {
+        limiter.acquire("x", 2);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread thread = new Thread(() -> {
+            try {
+                limiter.acquire("a", 1);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        });
+        thread.start();
+        awaitWaiting(thread);
+
+        thread.interrupt();
+        thread.join();
+        assertTrue(interrupted.get());
+
+        limiter.release(2);
+        assertEquals(0, limiter.getUsed());
+        assertEquals(0, limiter.acquire("b", 1));
+    }
+
+    /**
+     * starts a thread acquiring the permits, it records the grant then releases them.
+     */
+    private void startWaiting(Object owner, long amount, String name) throws InterruptedException {
+        Thread thread = new Thread(() -> {
+            try {
+                limiter.acquire(owner, amount);
+                granted.add(name);
+                limiter.release(amount);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        awaitWaiting(thread);
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(5);
+        }
+    }
+}
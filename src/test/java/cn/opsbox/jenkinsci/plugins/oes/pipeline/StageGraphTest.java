@@ -0,0 +1,109 @@
+package cn.opsbox.jenkinsci.plugins.oes.pipeline;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StageGraphTest {
+
+    @Test
+    public void stagesWithoutNeedsRunOneAfterAnother() throws ConfigException {
+        List<Stage> stages = Arrays.asList(stage("build"), stage("test"), stage("deploy"));
+
+        StageGraph graph = StageGraph.of(stages, stages);
+
+        assertTrue(graph.isSequential());
+        assertEquals(indexes(), graph.getDependencies(0));
+        assertEquals(indexes(0), graph.getDependencies(1));
+        assertEquals(indexes(1), graph.getDependencies(2));
+    }
+
+    @Test
+    public void needsNameTheStagesRunBefore() throws ConfigException {
+        List<Stage> stages = Arrays.asList(stage("build-api"), stage("build-web", "build-api"),
+                stage("lint", new String[0]), stage("deploy", "build-api", "build-web"));
+
+        StageGraph graph = StageGraph.of(stages, stages);
+
+        assertFalse(graph.isSequential());
+        assertEquals(indexes(0), graph.getDependencies(1));
+        assertEquals(indexes(), graph.getDependencies(2));
+        assertEquals(indexes(0, 1), graph.getDependencies(3));
+    }
+
+    @Test
+    public void needingTheMatrixNeedsAllItsCells() throws ConfigException {
+        List<Stage> stages = Arrays.asList(stage("build"), cell("test", "JDK=8"), cell("test", "JDK=11"),
+                stage("deploy", "test"));
+
+        StageGraph graph = StageGraph.of(stages, stages);
+
+        assertFalse(graph.isSequential());
+        assertEquals(indexes(0), graph.getDependencies(1));
+        assertEquals(indexes(0), graph.getDependencies(2));
+        assertEquals(indexes(1, 2), graph.getDependencies(3));
+    }
+
+    @Test
+    public void stageAfterTheMatrixNeedsAllItsCells() throws ConfigException {
+        List<Stage> stages = Arrays.asList(cell("test", "JDK=8"), cell("test", "JDK=11"), stage("deploy"));
+
+        StageGraph graph = StageGraph.of(stages, stages);
+
+        assertEquals(indexes(), graph.getDependencies(0));
+        assertEquals(indexes(), graph.getDependencies(1));
+        assertEquals(indexes(0, 1), graph.getDependencies(2));
+    }
+
+    @Test
+    public void needsOfStagesNotRunningAreIgnored() throws ConfigException {
+        Stage build = stage("build");
+        Stage deploy = stage("deploy", "build");
+
+        StageGraph graph = StageGraph.of(Collections.singletonList(deploy), Arrays.asList(build, deploy));
+
+        assertEquals(indexes(), graph.getDependencies(0));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void needingUnknownStageFails() throws ConfigException {
+        List<Stage> stages = Arrays.asList(stage("build"), stage("deploy", "package"));
+
+        StageGraph.of(stages, stages);
+    }
+
+    @Test(expected = ConfigException.class)
+    public void stagesNeedingEachOtherFail() throws ConfigException {
+        List<Stage> stages = Arrays.asList(stage("build", "deploy"), stage("test", "build"), stage("deploy", "test"));
+
+        StageGraph.of(stages, stages);
+    }
+
+    private static Stage stage(String name, String... needs) {
+        Stage stage = new Stage(name);
+        stage.setNeeds(Arrays.asList(needs));
+        return stage;
+    }
+
+    private static Stage stage(String name) {
+        return new Stage(name);
+    }
+
+    private static Stage cell(String matrix, String axisValue) {
+        Stage stage = new Stage(String.format("%s (%s)", matrix, axisValue));
+        stage.setMatrix(matrix);
+        return stage;
+    }
+
+    private static Set<Integer> indexes(Integer... indexes) {
+        return new HashSet<>(Arrays.asList(indexes));
+    }
+}
@@ -0,0 +1,80 @@
+package cn.opsbox.jenkinsci.plugins.oes.pipeline;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class StageTest {
+
+    @Test
+    public void matrixHasStageForEachCombinationOfAxisValues() {
+        Map<String, Object> axes = new LinkedHashMap<>();
+        axes.put("JDK", Arrays.asList(8, 11));
+        axes.put("ARCH", Arrays.asList("amd64", "arm64"));
+
+        List<Stage> cells = Stage.parseMatrix(matrixStage(axes, 2), Collections.singletonMap("ENV_ID", "test"));
+
+        assertEquals(4, cells.size());
+        assertEquals("test (JDK=8, ARCH=amd64)", cells.get(0).getName());
+        assertEquals("test (JDK=8, ARCH=arm64)", cells.get(1).getName());
+        assertEquals("test (JDK=11, ARCH=amd64)", cells.get(2).getName());
+        assertEquals("test (JDK=11, ARCH=arm64)", cells.get(3).getName());
+
+        Stage cell = cells.get(2);
+        assertEquals("test", cell.getMatrix());
+        assertEquals(2, cell.getMatrixParallelism());
+        assertEquals("11", cell.getAxisValues().get("JDK"));
+        assertEquals("amd64", cell.getAxisValues().get("ARCH"));
+        assertEquals("11", cell.getEnvironment().get("JDK"));
+        assertEquals("test", cell.getEnvironment().get("ENV_ID"));
+    }
+
+    @Test
+    public void matrixWithoutParallelismIsLimitedByThePipelineOnly() {
+        Map<String, Object> axes = Collections.singletonMap("JDK", Arrays.asList(8, 11));
+
+        List<Stage> cells = Stage.parseMatrix(matrixStage(axes, null), new HashMap<>());
+
+        assertEquals(0, cells.get(0).getMatrixParallelism());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void matrixWithoutAxesFails() {
+        Stage.parseMatrix(matrixStage(new HashMap<>(), null), new HashMap<>());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void axisWithoutValuesFails() {
+        Map<String, Object> axes = Collections.singletonMap("JDK", Collections.emptyList());
+
+        Stage.parseMatrix(matrixStage(axes, null), new HashMap<>());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void badParallelismFails() {
+        Map<String, Object> axes = Collections.singletonMap("JDK", Arrays.asList(8, 11));
+
+        Stage.parseMatrix(matrixStage(axes, "two"), new HashMap<>());
+    }
+
+    private static Map<String, Object> matrixStage(Map<String, Object> axes, Object parallelism) {
+        Map<String, Object> matrix = new LinkedHashMap<>();
+        matrix.put(Config.KEY_AXES, axes);
+        if (parallelism != null) {
+            matrix.put(Config.KEY_PARALLELISM, parallelism);
+        }
+
+        Map<String, Object> stage = new LinkedHashMap<>();
+        stage.put(Config.KEY_NAME, "test");
+        stage.put(Config.KEY_MATRIX, matrix);
+        stage.put(Config.KEY_STEPS, Collections.singletonList("maven"));
+        return stage;
+    }
+}